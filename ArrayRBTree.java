@@ -0,0 +1,452 @@
+import java.util.Arrays;
+
+//
+// The same red-black tree with subtree event sums as RBTree, but the nodes live
+// in parallel primitive arrays and refer to each other by int index instead of
+// by reference. A node costs four ints, two longs and one color bit (about 32
+// bytes) instead of a full EventNode object, and the whole tree is a handful of
+// large arrays that the garbage collector never has to trace.
+//
+// Index 0 is the shared NIL leaf: it is always black and its sum is always 0,
+// so the rebalancing code never has to test for null children.
+//
+public class ArrayRBTree implements EventCounter {
+
+	private static final int NIL = 0;
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] ids;
+	private long[] counts; // count of the event stored in the node. Always greater than 0.
+	private long[] sums; // summation of the counts in the subtree rooted at the node
+	private int[] left;
+	private int[] right;
+	private int[] parent;
+	private long[] redBits; // one color bit per node, set for red
+
+	private int root = NIL;
+	private int size;
+	private int highWater = 1; // slots below this have been handed out at least once
+	private int freeList = NIL; // deleted slots, chained through right[]
+
+	public ArrayRBTree() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ArrayRBTree(int capacity) {
+		allocate(Math.max(capacity + 1, 2));
+	}
+
+	//
+	// Builds a balanced tree from n events that are sorted by ID with unique
+	// IDs, the same way RBTree.generateRBT does: the deepest level is colored
+	// red and every other level black.
+	//
+	public static ArrayRBTree fromSorted(int[] sortedIds, long[] sortedCounts, int n) {
+		ArrayRBTree tree = new ArrayRBTree(n);
+		if (n > 0) {
+			// slot i + 1 holds the i-th event, so in-order position and slot agree
+			System.arraycopy(sortedIds, 0, tree.ids, 1, n);
+			System.arraycopy(sortedCounts, 0, tree.counts, 1, n);
+			tree.root = tree.generateBST(1, n, 0, RBTree.getMaxHeight(n));
+			tree.parent[tree.root] = NIL;
+			// a single event is both the root and the deepest level, which is colored red
+			tree.setRed(tree.root, false);
+			tree.size = n;
+			tree.highWater = n + 1;
+		}
+		return tree;
+	}
+
+	private int generateBST(int start, int end, int currHeight, int maxHeight) {
+		if (start > end) {
+			return NIL;
+		}
+		int mid = start + (end - start) / 2;
+		int l = generateBST(start, mid - 1, currHeight + 1, maxHeight);
+		int r = generateBST(mid + 1, end, currHeight + 1, maxHeight);
+		left[mid] = l;
+		right[mid] = r;
+		parent[l] = mid;
+		parent[r] = mid;
+		sums[mid] = counts[mid] + sums[l] + sums[r];
+		setRed(mid, currHeight == maxHeight);
+		return mid;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// throws ArithmeticException, leaving the tree untouched, if the total would overflow
+	public long increase(int eventID, long m) {
+		EventCounter.checkDelta(m);
+		// no aggregate can exceed the root's, so checking it covers all of them
+		Math.addExact(sums[root], m);
+		return upsert(eventID, m);
+	}
+
+	public long reduce(int eventID, long m) {
+		EventCounter.checkDelta(m);
+		int node = findEventNode(eventID);
+		if (node == NIL) {
+			return 0;
+		}
+		if (counts[node] <= m) {
+			delete(node);
+			return 0;
+		}
+		counts[node] -= m;
+		for (int ancestor = node; ancestor != NIL; ancestor = parent[ancestor]) {
+			sums[ancestor] -= m;
+		}
+		return counts[node];
+	}
+
+	public long count(int eventID) {
+		int node = findEventNode(eventID);
+		return node == NIL ? 0 : counts[node];
+	}
+
+	public long rangeSum(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		return sumAtMost(hi) - sumBelow(lo);
+	}
+
+	public long nextId(int eventID) {
+		int node = root, bestFit = NIL;
+		while (node != NIL) {
+			if (eventID < ids[node]) {
+				bestFit = node;
+				node = left[node];
+			} else {
+				node = right[node];
+			}
+		}
+		return bestFit == NIL ? NO_ID : ids[bestFit];
+	}
+
+	public long previousId(int eventID) {
+		int node = root, bestFit = NIL;
+		while (node != NIL) {
+			if (eventID > ids[node]) {
+				bestFit = node;
+				node = right[node];
+			} else {
+				node = left[node];
+			}
+		}
+		return bestFit == NIL ? NO_ID : ids[bestFit];
+	}
+
+	// total count of the IDs <= eventID, in one descent
+	private long sumAtMost(int eventID) {
+		long total = 0;
+		int node = root;
+		while (node != NIL) {
+			if (ids[node] <= eventID) {
+				total += sums[left[node]] + counts[node];
+				node = right[node];
+			} else {
+				node = left[node];
+			}
+		}
+		return total;
+	}
+
+	// total count of the IDs < eventID, in one descent
+	private long sumBelow(int eventID) {
+		long total = 0;
+		int node = root;
+		while (node != NIL) {
+			if (ids[node] < eventID) {
+				total += sums[left[node]] + counts[node];
+				node = right[node];
+			} else {
+				node = left[node];
+			}
+		}
+		return total;
+	}
+
+	private int findEventNode(int eventID) {
+		int node = root;
+		while (node != NIL && ids[node] != eventID) {
+			node = eventID < ids[node] ? left[node] : right[node];
+		}
+		return node;
+	}
+
+	// finds or inserts eventID in one descent, adding m to the sums on the way
+	// down, and returns its new count
+	private long upsert(int eventID, long m) {
+		int p = NIL, temp = root;
+		while (temp != NIL) {
+			sums[temp] += m;
+			if (eventID == ids[temp]) {
+				counts[temp] += m;
+				return counts[temp];
+			}
+			p = temp;
+			temp = eventID < ids[temp] ? left[temp] : right[temp];
+		}
+		// newNode may grow the arrays, so nothing is cached across it
+		int node = newNode(eventID, m);
+		parent[node] = p;
+		if (p == NIL) {
+			root = node;
+		} else if (eventID < ids[p]) {
+			left[p] = node;
+		} else {
+			right[p] = node;
+		}
+		insertFixup(node);
+		return counts[node];
+	}
+
+	private void insertFixup(int node) {
+		while (isRed(parent[node])) {
+			int p = parent[node];
+			int gParent = parent[p];
+			if (p == left[gParent]) {
+				int uncle = right[gParent];
+				if (isRed(uncle)) {
+					setRed(p, false);
+					setRed(uncle, false);
+					setRed(gParent, true);
+					node = gParent;
+				} else {
+					if (node == right[p]) {
+						node = p;
+						leftRotate(node);
+						p = parent[node];
+					}
+					setRed(p, false);
+					setRed(gParent, true);
+					rightRotate(gParent);
+				}
+			} else {
+				int uncle = left[gParent];
+				if (isRed(uncle)) {
+					setRed(p, false);
+					setRed(uncle, false);
+					setRed(gParent, true);
+					node = gParent;
+				} else {
+					if (node == left[p]) {
+						node = p;
+						rightRotate(node);
+						p = parent[node];
+					}
+					setRed(p, false);
+					setRed(gParent, true);
+					leftRotate(gParent);
+				}
+			}
+		}
+		setRed(root, false);
+	}
+
+	private void delete(int node) {
+		// take the node's count out of every aggregate first; from here on the
+		// node weighs nothing and the structural changes below keep sums intact
+		long deletedCount = counts[node];
+		for (int ancestor = node; ancestor != NIL; ancestor = parent[ancestor]) {
+			sums[ancestor] -= deletedCount;
+		}
+		counts[node] = 0;
+
+		int moved = node; // the node that is physically removed from its position
+		boolean movedWasRed = isRed(moved);
+		int child;
+		if (left[node] == NIL) {
+			child = right[node];
+			transplant(node, child);
+		} else if (right[node] == NIL) {
+			child = left[node];
+			transplant(node, child);
+		} else {
+			moved = left[node];
+			while (right[moved] != NIL) {
+				moved = right[moved];
+			}
+			// the predecessor leaves the subtrees between it and the deleted node
+			for (int ancestor = parent[moved]; ancestor != node; ancestor = parent[ancestor]) {
+				sums[ancestor] -= counts[moved];
+			}
+			movedWasRed = isRed(moved);
+			child = left[moved];
+			if (parent[moved] == node) {
+				parent[child] = moved;
+			} else {
+				transplant(moved, child);
+				left[moved] = left[node];
+				parent[left[moved]] = moved;
+			}
+			transplant(node, moved);
+			right[moved] = right[node];
+			parent[right[moved]] = moved;
+			setRed(moved, isRed(node));
+			sums[moved] = sums[node];
+		}
+		if (!movedWasRed) {
+			deleteFixup(child);
+		}
+		freeNode(node);
+	}
+
+	private void deleteFixup(int node) {
+		while (node != root && !isRed(node)) {
+			int p = parent[node];
+			if (node == left[p]) {
+				int sibling = right[p];
+				if (isRed(sibling)) {
+					setRed(sibling, false);
+					setRed(p, true);
+					leftRotate(p);
+					sibling = right[p];
+				}
+				if (!isRed(left[sibling]) && !isRed(right[sibling])) {
+					setRed(sibling, true);
+					node = p;
+				} else {
+					if (!isRed(right[sibling])) {
+						setRed(left[sibling], false);
+						setRed(sibling, true);
+						rightRotate(sibling);
+						sibling = right[p];
+					}
+					setRed(sibling, isRed(p));
+					setRed(p, false);
+					setRed(right[sibling], false);
+					leftRotate(p);
+					node = root;
+				}
+			} else {
+				int sibling = left[p];
+				if (isRed(sibling)) {
+					setRed(sibling, false);
+					setRed(p, true);
+					rightRotate(p);
+					sibling = left[p];
+				}
+				if (!isRed(left[sibling]) && !isRed(right[sibling])) {
+					setRed(sibling, true);
+					node = p;
+				} else {
+					if (!isRed(left[sibling])) {
+						setRed(right[sibling], false);
+						setRed(sibling, true);
+						leftRotate(sibling);
+						sibling = left[p];
+					}
+					setRed(sibling, isRed(p));
+					setRed(p, false);
+					setRed(left[sibling], false);
+					rightRotate(p);
+					node = root;
+				}
+			}
+		}
+		setRed(node, false);
+	}
+
+	// replaces the subtree rooted at oldNode with the one rooted at newNode
+	private void transplant(int oldNode, int newNode) {
+		int p = parent[oldNode];
+		if (p == NIL) {
+			root = newNode;
+		} else if (oldNode == left[p]) {
+			left[p] = newNode;
+		} else {
+			right[p] = newNode;
+		}
+		parent[newNode] = p;
+	}
+
+	private void leftRotate(int node) {
+		int rightChild = right[node];
+		right[node] = left[rightChild];
+		parent[left[rightChild]] = node;
+		transplant(node, rightChild);
+		left[rightChild] = node;
+		parent[node] = rightChild;
+		sums[rightChild] = sums[node];
+		sums[node] = counts[node] + sums[left[node]] + sums[right[node]];
+	}
+
+	private void rightRotate(int node) {
+		int leftChild = left[node];
+		left[node] = right[leftChild];
+		parent[right[leftChild]] = node;
+		transplant(node, leftChild);
+		right[leftChild] = node;
+		parent[node] = leftChild;
+		sums[leftChild] = sums[node];
+		sums[node] = counts[node] + sums[left[node]] + sums[right[node]];
+	}
+
+	private boolean isRed(int node) {
+		return (redBits[node >>> 6] & (1L << node)) != 0;
+	}
+
+	private void setRed(int node, boolean red) {
+		if (red) {
+			redBits[node >>> 6] |= 1L << node;
+		} else {
+			redBits[node >>> 6] &= ~(1L << node);
+		}
+	}
+
+	private int newNode(int eventID, long count) {
+		int node;
+		if (freeList != NIL) {
+			node = freeList;
+			freeList = right[node];
+		} else {
+			if (highWater == ids.length) {
+				allocate(ids.length + (ids.length >> 1));
+			}
+			node = highWater++;
+		}
+		ids[node] = eventID;
+		counts[node] = count;
+		sums[node] = count;
+		left[node] = NIL;
+		right[node] = NIL;
+		setRed(node, true); // a node is red when it is first created
+		size++;
+		return node;
+	}
+
+	private void freeNode(int node) {
+		left[node] = NIL;
+		parent[node] = NIL;
+		right[node] = freeList;
+		freeList = node;
+		size--;
+		// the NIL slot may have been given a parent during the fix-up
+		parent[NIL] = NIL;
+	}
+
+	private void allocate(int capacity) {
+		if (ids == null) {
+			ids = new int[capacity];
+			counts = new long[capacity];
+			sums = new long[capacity];
+			left = new int[capacity];
+			right = new int[capacity];
+			parent = new int[capacity];
+			redBits = new long[(capacity + 63) >>> 6];
+		} else {
+			ids = Arrays.copyOf(ids, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			sums = Arrays.copyOf(sums, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			redBits = Arrays.copyOf(redBits, (capacity + 63) >>> 6);
+		}
+	}
+}
@@ -0,0 +1,513 @@
+import java.io.IOException;
+
+//
+// An event counter on a wide B+-tree. Every inner node holds up to
+// INNER_CAPACITY children together with the total count below each child, and
+// the events themselves sit sorted in leaves of up to LEAF_CAPACITY, so a
+// lookup touches about log64(n) nodes instead of log2(n): 5 levels for 100M
+// events instead of 27, each one a short run of adjacent memory.
+//
+// The per-child sums answer inRange with two descents, like the subtree sums
+// of the red-black tree. The leaves are linked in ID order, so next, previous
+// and a full walk only ever step to the neighbouring leaf.
+//
+// Nodes are split when they overflow. A node that falls below a quarter full is
+// merged with a neighbour if the two fit in one node; an empty node is always
+// removed.
+//
+public class BPlusTreeCounter implements EventCounter {
+
+	static final int LEAF_CAPACITY = 64;
+	static final int INNER_CAPACITY = 64;
+	private static final int LEAF_MIN = LEAF_CAPACITY / 4;
+	private static final int INNER_MIN = INNER_CAPACITY / 4;
+
+	abstract static class Node {
+		int size; // events in a leaf, children in an inner node
+	}
+
+	// one slot more than the capacity, so that a node can overflow before it is split
+	static final class Leaf extends Node {
+		final int[] ids = new int[LEAF_CAPACITY + 1];
+		final long[] counts = new long[LEAF_CAPACITY + 1];
+		Leaf prev, next;
+	}
+
+	static final class Inner extends Node {
+		// children[i] holds the IDs in [keys[i - 1], keys[i])
+		final int[] keys = new int[INNER_CAPACITY];
+		final Node[] children = new Node[INNER_CAPACITY + 1];
+		final long[] sums = new long[INNER_CAPACITY + 1]; // total count below each child
+	}
+
+	private Node root = new Leaf();
+	private int height; // inner levels above the leaves
+	private int size;
+	private long total;
+
+	// the inner nodes and child slots of the last update's descent, root first.
+	// Reused so that updates allocate nothing unless they split a node.
+	private Inner[] pathNodes = new Inner[8];
+	private int[] pathSlots = new int[8];
+
+	public BPlusTreeCounter() {
+	}
+
+	//
+	// Builds a tree from events sorted by ID with unique IDs, in one pass: the
+	// leaves are filled left to right and the inner levels are stacked on top,
+	// with the children spread evenly over the nodes of each level.
+	//
+	public static BPlusTreeCounter fromSorted(BulkLoader.SortedEvents events) throws IOException {
+		BPlusTreeCounter tree = new BPlusTreeCounter();
+		int n = events.size();
+		if (n == 0) {
+			return tree;
+		}
+		int count = (n + LEAF_CAPACITY - 1) / LEAF_CAPACITY;
+		Node[] nodes = new Node[count];
+		long[] sums = new long[count];
+		int[] firstIds = new int[count];
+		Leaf leaf = null;
+		int leaves = 0;
+		while (events.next()) {
+			if (leaf == null || leaf.size == LEAF_CAPACITY) {
+				Leaf previous = leaf;
+				leaf = new Leaf();
+				leaf.prev = previous;
+				if (previous != null) {
+					previous.next = leaf;
+				}
+				nodes[leaves] = leaf;
+				firstIds[leaves] = events.id();
+				leaves++;
+			}
+			leaf.ids[leaf.size] = events.id();
+			leaf.counts[leaf.size] = events.count();
+			leaf.size++;
+			sums[leaves - 1] = Math.addExact(sums[leaves - 1], events.count());
+			tree.total = Math.addExact(tree.total, events.count());
+			tree.size++;
+		}
+		if (tree.size != n) {
+			throw new IllegalStateException("Expected " + n + " events but got " + tree.size);
+		}
+		while (count > 1) {
+			int parents = (count + INNER_CAPACITY - 1) / INNER_CAPACITY;
+			for (int p = 0, child = 0; p < parents; p++) {
+				// the first count % parents nodes take one child more
+				int children = count / parents + (p < count % parents ? 1 : 0);
+				Inner inner = new Inner();
+				long sum = 0;
+				for (int c = 0; c < children; c++, child++) {
+					inner.children[c] = nodes[child];
+					inner.sums[c] = sums[child];
+					if (c > 0) {
+						inner.keys[c - 1] = firstIds[child];
+					}
+					sum += sums[child];
+				}
+				inner.size = children;
+				int firstId = firstIds[child - children];
+				nodes[p] = inner;
+				sums[p] = sum;
+				firstIds[p] = firstId;
+			}
+			count = parents;
+			tree.height++;
+		}
+		tree.root = nodes[0];
+		tree.ensurePathCapacity();
+		return tree;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// throws ArithmeticException, leaving the tree untouched, if the total would overflow
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Math.addExact(total, delta);
+		Leaf leaf = descend(id);
+		for (int level = 0; level < height; level++) {
+			pathNodes[level].sums[pathSlots[level]] += delta;
+		}
+		total += delta;
+		int i = lowerBound(leaf, id);
+		if (i < leaf.size && leaf.ids[i] == id) {
+			leaf.counts[i] += delta;
+			return leaf.counts[i];
+		}
+		System.arraycopy(leaf.ids, i, leaf.ids, i + 1, leaf.size - i);
+		System.arraycopy(leaf.counts, i, leaf.counts, i + 1, leaf.size - i);
+		leaf.ids[i] = id;
+		leaf.counts[i] = delta;
+		leaf.size++;
+		size++;
+		if (leaf.size > LEAF_CAPACITY) {
+			splitLeaf(leaf);
+		}
+		return delta;
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Leaf leaf = descend(id);
+		int i = lowerBound(leaf, id);
+		if (i == leaf.size || leaf.ids[i] != id) {
+			return 0;
+		}
+		long count = leaf.counts[i];
+		long removed = Math.min(count, delta);
+		for (int level = 0; level < height; level++) {
+			pathNodes[level].sums[pathSlots[level]] -= removed;
+		}
+		total -= removed;
+		if (count > delta) {
+			leaf.counts[i] = count - delta;
+			return leaf.counts[i];
+		}
+		System.arraycopy(leaf.ids, i + 1, leaf.ids, i, leaf.size - i - 1);
+		System.arraycopy(leaf.counts, i + 1, leaf.counts, i, leaf.size - i - 1);
+		leaf.size--;
+		size--;
+		if (leaf.size < LEAF_MIN && height > 0) {
+			rebalanceLeaf(leaf);
+		}
+		return 0;
+	}
+
+	public long count(int id) {
+		Leaf leaf = findLeaf(id);
+		int i = lowerBound(leaf, id);
+		return i < leaf.size && leaf.ids[i] == id ? leaf.counts[i] : 0;
+	}
+
+	public long rangeSum(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		return sumBelow(hi, true) - sumBelow(lo, false);
+	}
+
+	public long nextId(int id) {
+		Leaf leaf = findLeaf(id);
+		int i = upperBound(leaf, id);
+		if (i < leaf.size) {
+			return leaf.ids[i];
+		}
+		for (leaf = leaf.next; leaf != null; leaf = leaf.next) {
+			if (leaf.size > 0) {
+				return leaf.ids[0];
+			}
+		}
+		return NO_ID;
+	}
+
+	public long previousId(int id) {
+		Leaf leaf = findLeaf(id);
+		int i = lowerBound(leaf, id) - 1;
+		if (i >= 0) {
+			return leaf.ids[i];
+		}
+		for (leaf = leaf.prev; leaf != null; leaf = leaf.prev) {
+			if (leaf.size > 0) {
+				return leaf.ids[leaf.size - 1];
+			}
+		}
+		return NO_ID;
+	}
+
+	// the events in ID order, walking the leaf chain. The tree must not change
+	// while the cursor is in use.
+	BulkLoader.SortedEvents events() {
+		Node node = root;
+		for (int level = 0; level < height; level++) {
+			node = ((Inner) node).children[0];
+		}
+		Leaf first = (Leaf) node;
+		return new BulkLoader.SortedEvents() {
+			private Leaf leaf = first;
+			private int position = -1;
+
+			public int size() {
+				return size;
+			}
+
+			public boolean next() {
+				position++;
+				while (leaf != null && position >= leaf.size) {
+					leaf = leaf.next;
+					position = 0;
+				}
+				return leaf != null;
+			}
+
+			public int id() {
+				return leaf.ids[position];
+			}
+
+			public long count() {
+				return leaf.counts[position];
+			}
+		};
+	}
+
+	// total count of the IDs below id (or at most id if inclusive)
+	private long sumBelow(int id, boolean inclusive) {
+		long sum = 0;
+		Node node = root;
+		for (int level = 0; level < height; level++) {
+			Inner inner = (Inner) node;
+			int slot = childSlot(inner, id);
+			for (int c = 0; c < slot; c++) {
+				sum += inner.sums[c];
+			}
+			node = inner.children[slot];
+		}
+		Leaf leaf = (Leaf) node;
+		int end = inclusive ? upperBound(leaf, id) : lowerBound(leaf, id);
+		for (int i = 0; i < end; i++) {
+			sum += leaf.counts[i];
+		}
+		return sum;
+	}
+
+	// the leaf that holds or would hold id, without recording the path
+	private Leaf findLeaf(int id) {
+		Node node = root;
+		for (int level = 0; level < height; level++) {
+			Inner inner = (Inner) node;
+			node = inner.children[childSlot(inner, id)];
+		}
+		return (Leaf) node;
+	}
+
+	// the leaf that holds or would hold id, recording the path for an update
+	private Leaf descend(int id) {
+		Node node = root;
+		for (int level = 0; level < height; level++) {
+			Inner inner = (Inner) node;
+			int slot = childSlot(inner, id);
+			pathNodes[level] = inner;
+			pathSlots[level] = slot;
+			node = inner.children[slot];
+		}
+		return (Leaf) node;
+	}
+
+	// the child whose ID range contains id: the number of keys <= id
+	private static int childSlot(Inner inner, int id) {
+		int lo = 0, hi = inner.size - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (inner.keys[mid] <= id) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// index of the first id >= id in the leaf
+	private static int lowerBound(Leaf leaf, int id) {
+		int lo = 0, hi = leaf.size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (leaf.ids[mid] < id) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// index of the first id > id in the leaf
+	private static int upperBound(Leaf leaf, int id) {
+		int lo = 0, hi = leaf.size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (leaf.ids[mid] <= id) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private void splitLeaf(Leaf leaf) {
+		Leaf right = new Leaf();
+		int half = leaf.size / 2;
+		right.size = leaf.size - half;
+		System.arraycopy(leaf.ids, half, right.ids, 0, right.size);
+		System.arraycopy(leaf.counts, half, right.counts, 0, right.size);
+		leaf.size = half;
+		right.next = leaf.next;
+		if (right.next != null) {
+			right.next.prev = right;
+		}
+		right.prev = leaf;
+		leaf.next = right;
+		long rightSum = 0;
+		for (int i = 0; i < right.size; i++) {
+			rightSum += right.counts[i];
+		}
+		insertChild(height - 1, right, right.ids[0], rightSum);
+	}
+
+	//
+	// Puts node, which was split off the right of the path node at level + 1,
+	// next to it in the path node at level. Its sum moves out of the sibling's
+	// slot into its own.
+	//
+	private void insertChild(int level, Node node, int firstId, long sum) {
+		if (level < 0) {
+			Inner newRoot = new Inner();
+			newRoot.children[0] = root;
+			newRoot.children[1] = node;
+			newRoot.keys[0] = firstId;
+			newRoot.sums[0] = total - sum;
+			newRoot.sums[1] = sum;
+			newRoot.size = 2;
+			root = newRoot;
+			height++;
+			ensurePathCapacity();
+			return;
+		}
+		Inner parent = pathNodes[level];
+		int slot = pathSlots[level];
+		parent.sums[slot] -= sum;
+		System.arraycopy(parent.children, slot + 1, parent.children, slot + 2, parent.size - slot - 1);
+		System.arraycopy(parent.sums, slot + 1, parent.sums, slot + 2, parent.size - slot - 1);
+		System.arraycopy(parent.keys, slot, parent.keys, slot + 1, parent.size - slot - 1);
+		parent.children[slot + 1] = node;
+		parent.sums[slot + 1] = sum;
+		parent.keys[slot] = firstId;
+		parent.size++;
+		if (parent.size > INNER_CAPACITY) {
+			splitInner(level);
+		}
+	}
+
+	private void splitInner(int level) {
+		Inner inner = pathNodes[level];
+		Inner right = new Inner();
+		int half = inner.size / 2;
+		right.size = inner.size - half;
+		System.arraycopy(inner.children, half, right.children, 0, right.size);
+		System.arraycopy(inner.sums, half, right.sums, 0, right.size);
+		System.arraycopy(inner.keys, half, right.keys, 0, right.size - 1);
+		int firstId = inner.keys[half - 1];
+		for (int c = half; c < inner.size; c++) {
+			inner.children[c] = null;
+		}
+		inner.size = half;
+		long rightSum = 0;
+		for (int c = 0; c < right.size; c++) {
+			rightSum += right.sums[c];
+		}
+		insertChild(level - 1, right, firstId, rightSum);
+	}
+
+	// merges an underfull leaf with a neighbour, or removes it if it is empty
+	private void rebalanceLeaf(Leaf leaf) {
+		int level = height - 1;
+		Inner parent = pathNodes[level];
+		int slot = pathSlots[level];
+		if (slot > 0 && parent.children[slot - 1].size + leaf.size <= LEAF_CAPACITY) {
+			Leaf left = (Leaf) parent.children[slot - 1];
+			System.arraycopy(leaf.ids, 0, left.ids, left.size, leaf.size);
+			System.arraycopy(leaf.counts, 0, left.counts, left.size, leaf.size);
+			left.size += leaf.size;
+			parent.sums[slot - 1] += parent.sums[slot];
+			unlink(leaf);
+			removeChild(level, slot);
+		} else if (slot + 1 < parent.size && parent.children[slot + 1].size + leaf.size <= LEAF_CAPACITY) {
+			Leaf right = (Leaf) parent.children[slot + 1];
+			System.arraycopy(right.ids, 0, leaf.ids, leaf.size, right.size);
+			System.arraycopy(right.counts, 0, leaf.counts, leaf.size, right.size);
+			leaf.size += right.size;
+			parent.sums[slot] += parent.sums[slot + 1];
+			unlink(right);
+			removeChild(level, slot + 1);
+		} else if (leaf.size == 0) {
+			unlink(leaf);
+			removeChild(level, slot);
+		}
+	}
+
+	// merges an underfull inner node on the path with a neighbour, or removes it if it is empty
+	private void rebalanceInner(int level) {
+		Inner inner = pathNodes[level];
+		Inner parent = pathNodes[level - 1];
+		int slot = pathSlots[level - 1];
+		if (slot > 0 && parent.children[slot - 1].size + inner.size <= INNER_CAPACITY) {
+			appendChildren((Inner) parent.children[slot - 1], parent.keys[slot - 1], inner);
+			parent.sums[slot - 1] += parent.sums[slot];
+			removeChild(level - 1, slot);
+		} else if (slot + 1 < parent.size && parent.children[slot + 1].size + inner.size <= INNER_CAPACITY) {
+			appendChildren(inner, parent.keys[slot], (Inner) parent.children[slot + 1]);
+			parent.sums[slot] += parent.sums[slot + 1];
+			removeChild(level - 1, slot + 1);
+		} else if (inner.size == 0) {
+			removeChild(level - 1, slot);
+		}
+	}
+
+	// moves the children of right to the end of left; separator lies between them
+	private static void appendChildren(Inner left, int separator, Inner right) {
+		if (left.size > 0 && right.size > 0) {
+			left.keys[left.size - 1] = separator;
+		}
+		System.arraycopy(right.children, 0, left.children, left.size, right.size);
+		System.arraycopy(right.sums, 0, left.sums, left.size, right.size);
+		System.arraycopy(right.keys, 0, left.keys, left.size, Math.max(right.size - 1, 0));
+		left.size += right.size;
+	}
+
+	// drops a child whose sum is already 0 or has been moved to a neighbour
+	private void removeChild(int level, int slot) {
+		Inner inner = pathNodes[level];
+		System.arraycopy(inner.children, slot + 1, inner.children, slot, inner.size - slot - 1);
+		System.arraycopy(inner.sums, slot + 1, inner.sums, slot, inner.size - slot - 1);
+		// the key to the left of the child goes with it; the first child takes the one to its right
+		int key = Math.max(slot - 1, 0);
+		if (inner.size > 1) {
+			System.arraycopy(inner.keys, key + 1, inner.keys, key, inner.size - key - 2);
+		}
+		inner.size--;
+		inner.children[inner.size] = null;
+		if (level == 0) {
+			if (inner.size == 0) {
+				root = new Leaf();
+				height = 0;
+			} else if (inner.size == 1) {
+				root = inner.children[0];
+				height--;
+			}
+		} else if (inner.size < INNER_MIN) {
+			rebalanceInner(level);
+		}
+	}
+
+	private static void unlink(Leaf leaf) {
+		if (leaf.prev != null) {
+			leaf.prev.next = leaf.next;
+		}
+		if (leaf.next != null) {
+			leaf.next.prev = leaf.prev;
+		}
+		leaf.prev = leaf.next = null;
+	}
+
+	private void ensurePathCapacity() {
+		if (pathNodes.length < height) {
+			pathNodes = new Inner[2 * height];
+			pathSlots = new int[2 * height];
+		}
+	}
+}
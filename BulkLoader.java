@@ -0,0 +1,392 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//
+// Turns a stream of (id, count) pairs in any order, with repeated IDs, into a
+// sorted stream with unique IDs whose counts are the sums of the repeats.
+//
+// Pairs are collected in a fixed-size chunk. A full chunk is sorted with
+// Arrays.parallelSort, its duplicates are merged, and it is spilled to a
+// temporary run file. finish() merges the runs (k-way, again summing
+// duplicates) into one final run and returns a cursor over it. If everything
+// fits in one chunk, nothing touches the disk. Either way the memory used is
+// bounded by the chunk size, not by the input size.
+//
+public class BulkLoader implements Closeable {
+
+	static final int DEFAULT_CHUNK_SIZE = 1 << 21;
+
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+
+	private final int chunkSize;
+	private int[] ids;
+	private long[] counts;
+	private long[] sortKeys; // (id, index) packed so that sorting them sorts the chunk by ID
+	private long[] sortedCounts;
+	private int size;
+	private int minId = Integer.MAX_VALUE, maxId = Integer.MIN_VALUE;
+
+	private final List<File> runs = new ArrayList<>();
+
+	public BulkLoader() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	public BulkLoader(int chunkSize) {
+		this.chunkSize = chunkSize;
+		this.ids = new int[Math.min(chunkSize, 1024)];
+		this.counts = new long[ids.length];
+	}
+
+	public void add(int id, long count) throws IOException {
+		if (size == ids.length) {
+			if (size == chunkSize) {
+				spill();
+			} else {
+				int capacity = (int) Math.min((long) size * 2, chunkSize);
+				ids = Arrays.copyOf(ids, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+			}
+		}
+		ids[size] = id;
+		counts[size] = count;
+		size++;
+		minId = Math.min(minId, id);
+		maxId = Math.max(maxId, id);
+	}
+
+	// Sorts and merges everything added so far. The loader must not be used
+	// afterwards, except to close it.
+	public SortedEvents finish() throws IOException {
+		sortAndCoalesce();
+		if (runs.isEmpty()) {
+			return new ArrayEvents(ids, counts, size);
+		}
+		writeRun();
+		releaseChunk();
+		File merged = mergeRuns();
+		RunFileEvents events = new RunFileEvents(merged, countPairs(merged));
+		events.minId = minId;
+		events.maxId = maxId;
+		return events;
+	}
+
+	// deletes any temporary run files that are left
+	public void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	private void spill() throws IOException {
+		sortAndCoalesce();
+		writeRun();
+	}
+
+	// sorts the chunk by ID and sums the counts of repeated IDs, in place
+	private void sortAndCoalesce() {
+		if (sortKeys == null || sortKeys.length < size) {
+			sortKeys = new long[ids.length];
+			sortedCounts = new long[ids.length];
+		}
+		for (int i = 0; i < size; i++) {
+			// the ID in the high half decides the signed order; the low half is never negative
+			sortKeys[i] = ((long) ids[i] << 32) | i;
+		}
+		Arrays.parallelSort(sortKeys, 0, size);
+		for (int i = 0; i < size; i++) {
+			sortedCounts[i] = counts[(int) sortKeys[i]];
+		}
+		int unique = 0;
+		for (int i = 0; i < size; i++) {
+			int id = (int) (sortKeys[i] >>> 32);
+			if (unique > 0 && ids[unique - 1] == id) {
+				counts[unique - 1] = Math.addExact(counts[unique - 1], sortedCounts[i]);
+			} else {
+				ids[unique] = id;
+				counts[unique] = sortedCounts[i];
+				unique++;
+			}
+		}
+		size = unique;
+	}
+
+	private void writeRun() throws IOException {
+		File run = File.createTempFile("bbst-run", ".bin");
+		run.deleteOnExit();
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE))) {
+			for (int i = 0; i < size; i++) {
+				out.writeInt(ids[i]);
+				out.writeLong(counts[i]);
+			}
+		}
+		size = 0;
+	}
+
+	private void releaseChunk() {
+		ids = null;
+		counts = null;
+		sortKeys = null;
+		sortedCounts = null;
+	}
+
+	// k-way merge of the sorted runs into one run, summing repeated IDs
+	private File mergeRuns() throws IOException {
+		int k = runs.size();
+		RunFileEvents[] readers = new RunFileEvents[k];
+		int[] heap = new int[k]; // indexes of the readers, ordered by their current ID
+		int heapSize = 0;
+		File merged = File.createTempFile("bbst-merged", ".bin");
+		merged.deleteOnExit();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), IO_BUFFER_SIZE))) {
+			for (int r = 0; r < k; r++) {
+				readers[r] = new RunFileEvents(runs.get(r), -1);
+				if (readers[r].next()) {
+					heap[heapSize++] = r;
+					siftUp(heap, heapSize - 1, readers);
+				}
+			}
+			boolean pending = false;
+			int pendingId = 0;
+			long pendingCount = 0;
+			while (heapSize > 0) {
+				RunFileEvents top = readers[heap[0]];
+				if (pending && top.id() == pendingId) {
+					pendingCount = Math.addExact(pendingCount, top.count());
+				} else {
+					if (pending) {
+						out.writeInt(pendingId);
+						out.writeLong(pendingCount);
+					}
+					pending = true;
+					pendingId = top.id();
+					pendingCount = top.count();
+				}
+				if (!top.next()) {
+					top.close();
+					heap[0] = heap[--heapSize];
+				}
+				siftDown(heap, heapSize, readers);
+			}
+			if (pending) {
+				out.writeInt(pendingId);
+				out.writeLong(pendingCount);
+			}
+		} finally {
+			for (RunFileEvents reader : readers) {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+			close();
+		}
+		runs.add(merged);
+		return merged;
+	}
+
+	private static void siftUp(int[] heap, int i, RunFileEvents[] readers) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (readers[heap[parent]].id() <= readers[heap[i]].id()) {
+				break;
+			}
+			swap(heap, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] heap, int heapSize, RunFileEvents[] readers) {
+		int i = 0;
+		while (true) {
+			int smallest = i, left = 2 * i + 1, right = left + 1;
+			if (left < heapSize && readers[heap[left]].id() < readers[heap[smallest]].id()) {
+				smallest = left;
+			}
+			if (right < heapSize && readers[heap[right]].id() < readers[heap[smallest]].id()) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			swap(heap, i, smallest);
+			i = smallest;
+		}
+	}
+
+	private static void swap(int[] heap, int i, int j) {
+		int temp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = temp;
+	}
+
+	private static int countPairs(File run) {
+		return (int) (run.length() / (Integer.BYTES + Long.BYTES));
+	}
+
+	//
+	// A forward-only cursor over events sorted by ID with unique IDs.
+	//
+	public interface SortedEvents extends Closeable {
+
+		// the number of events, known up front so the tree shape can be planned
+		int size();
+
+		// moves to the next event; returns false when there are no more
+		boolean next() throws IOException;
+
+		int id();
+
+		long count();
+
+		// the sorted IDs if the events are held in a heap array, otherwise null.
+		// Only the first size() entries are meaningful.
+		default int[] ids() {
+			return null;
+		}
+
+		// the counts matching ids(), or null
+		default long[] counts() {
+			return null;
+		}
+
+		// the smallest ID, if it is known without reading the events, otherwise
+		// EventCounter.NO_ID
+		default long minId() {
+			return EventCounter.NO_ID;
+		}
+
+		// the largest ID, or EventCounter.NO_ID if it is not known up front
+		default long maxId() {
+			return EventCounter.NO_ID;
+		}
+
+		default void close() throws IOException {
+		}
+	}
+
+	// the events in heap arrays: the ones they already sit in, or read into fresh ones
+	static ArrayEvents inMemory(SortedEvents events) throws IOException {
+		int n = events.size();
+		if (events.ids() != null) {
+			return new ArrayEvents(events.ids(), events.counts(), n);
+		}
+		int[] ids = new int[n];
+		long[] counts = new long[n];
+		for (int i = 0; events.next(); i++) {
+			ids[i] = events.id();
+			counts[i] = events.count();
+		}
+		return new ArrayEvents(ids, counts, n);
+	}
+
+	// events held in memory
+	static final class ArrayEvents implements SortedEvents {
+		private final int[] ids;
+		private final long[] counts;
+		private final int size;
+		private int position = -1;
+
+		ArrayEvents(int[] ids, long[] counts, int size) {
+			this.ids = ids;
+			this.counts = counts;
+			this.size = size;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean next() {
+			if (position + 1 >= size) {
+				return false;
+			}
+			position++;
+			return true;
+		}
+
+		public int id() {
+			return ids[position];
+		}
+
+		public long count() {
+			return counts[position];
+		}
+
+		public int[] ids() {
+			return ids;
+		}
+
+		public long[] counts() {
+			return counts;
+		}
+
+		public long minId() {
+			return size > 0 ? ids[0] : EventCounter.NO_ID;
+		}
+
+		public long maxId() {
+			return size > 0 ? ids[size - 1] : EventCounter.NO_ID;
+		}
+	}
+
+	// events read back from a run file
+	static final class RunFileEvents implements SortedEvents {
+		private final int size;
+		private final DataInputStream in;
+		private int id;
+		private long count;
+		long minId = EventCounter.NO_ID, maxId = EventCounter.NO_ID; // set by the loader that wrote the run
+
+		RunFileEvents(File run, int size) throws IOException {
+			this.size = size;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean next() throws IOException {
+			try {
+				id = in.readInt();
+				count = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		public int id() {
+			return id;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long minId() {
+			return minId;
+		}
+
+		public long maxId() {
+			return maxId;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
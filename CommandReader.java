@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+//
+// A byte-level tokenizer over a large input buffer. Tokens are separated by
+// spaces, tabs and line breaks. The current token is kept in a reusable scratch
+// array, so reading commands and numbers allocates nothing per line.
+//
+public class CommandReader {
+
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private final InputStream in;
+	private final byte[] buffer;
+	private int position;
+	private int limit;
+
+	private byte[] token = new byte[32];
+	private int tokenLength;
+
+	public CommandReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+	public CommandReader(InputStream in, int bufferSize) {
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+	}
+
+	// refills the buffer; returns false once the stream is exhausted
+	private boolean fill() throws IOException {
+		limit = in.read(buffer, 0, buffer.length);
+		position = 0;
+		if (limit <= 0) {
+			limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isSeparator(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	//
+	// Reads the next token into the scratch array. Returns false at the end
+	// of the input.
+	//
+	public boolean nextToken() throws IOException {
+		// skip the separators in front of the token
+		while (true) {
+			if (position == limit && !fill()) {
+				tokenLength = 0;
+				return false;
+			}
+			if (!isSeparator(buffer[position])) {
+				break;
+			}
+			position++;
+		}
+		tokenLength = 0;
+		while (true) {
+			if (position == limit && !fill()) {
+				return true;
+			}
+			byte b = buffer[position];
+			if (isSeparator(b)) {
+				return true;
+			}
+			if (tokenLength == token.length) {
+				byte[] grown = new byte[token.length * 2];
+				System.arraycopy(token, 0, grown, 0, tokenLength);
+				token = grown;
+			}
+			token[tokenLength++] = b;
+			position++;
+		}
+	}
+
+	// true if the current token is exactly the given ASCII word
+	public boolean tokenEquals(byte[] word) {
+		if (word.length != tokenLength) {
+			return false;
+		}
+		for (int i = 0; i < tokenLength; i++) {
+			if (token[i] != word[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the current token as a String. Only meant for error messages.
+	public String tokenString() {
+		return new String(token, 0, tokenLength, java.nio.charset.StandardCharsets.US_ASCII);
+	}
+
+	// discards the rest of the current line
+	public void skipLine() throws IOException {
+		while (true) {
+			if (position == limit && !fill()) {
+				return;
+			}
+			if (buffer[position++] == '\n') {
+				return;
+			}
+		}
+	}
+
+	public int nextInt() throws IOException {
+		long value = nextLong();
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Value out of int range: " + value);
+		}
+		return (int) value;
+	}
+
+	public long nextLong() throws IOException {
+		if (!nextToken()) {
+			throw new NumberFormatException("Expected a number but reached the end of the input");
+		}
+		int i = 0;
+		boolean negative = false;
+		if (token[0] == '-' || token[0] == '+') {
+			negative = token[0] == '-';
+			i++;
+		}
+		if (i == tokenLength) {
+			throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+		}
+		// accumulate negatively so that Long.MIN_VALUE parses without overflow
+		long value = 0;
+		for (; i < tokenLength; i++) {
+			int digit = token[i] - '0';
+			if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+				throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+			}
+			value = value * 10 - digit;
+		}
+		if (negative) {
+			return value;
+		}
+		if (value == Long.MIN_VALUE) {
+			throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+		}
+		return -value;
+	}
+}
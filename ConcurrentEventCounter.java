@@ -0,0 +1,372 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+//
+// A thread-safe event counter on top of an RBTree.
+//
+// Increments to IDs that are already present take a lock-free path: every such
+// ID gets a Cell whose LongAdder collects the pending deltas, striped across
+// threads, so 32 producers hammering the same hot ID do not fight over one
+// cache line. The deltas are folded into the tree (and so into the subtree
+// sums) by the writer path, which runs under the write lock: structural
+// inserts and deletes, reduce, and rangeSum while deltas are pending.
+//
+// The cells live in an open-addressed table keyed by ID. Readers probe it
+// without locking; it is only modified under the write lock. Each rebuild of
+// the table retires the cells of IDs that took no lock-free increase since
+// the one before (CLOCK style): their counts are folded into the tree, where
+// they stay, so an ID that was increased once does not hold a cell forever.
+//
+// A fold takes a cell's pending deltas out of its LongAdder before adding
+// them to the tree. If the tree throws ArithmeticException because its total
+// would overflow, they go back into the cell, so nothing is lost; the fold
+// is retried by the next writer. Deltas above LOCK_FREE_MAX_DELTA always take
+// the locked path, and a lock-free increase that would overflow its ID's
+// count takes its delta back and throws, so it fails in its own caller.
+//
+public class ConcurrentEventCounter implements EventCounter {
+
+	private static final int INITIAL_TABLE_SIZE = 64;
+	private static final long LOCK_FREE_MAX_DELTA = 1L << 32;
+
+	static final class Cell {
+		final int id;
+		final LongAdder pending = new LongAdder(); // increments not yet folded into the tree
+		final AtomicBoolean dirty = new AtomicBoolean(); // queued for folding
+		volatile long committed; // the count of id inside the tree. Written under the write lock.
+		volatile boolean live; // false once id has been removed from the tree, or the cell retired
+		volatile boolean warm; // took a lock-free increase since the last rebuild of the table
+
+		Cell(int id) {
+			this.id = id;
+		}
+	}
+
+	private final RBTree tree;
+	private final StampedLock lock = new StampedLock();
+	private final ConcurrentLinkedQueue<Cell> dirtyCells = new ConcurrentLinkedQueue<>();
+	private volatile AtomicReferenceArray<Cell> cells = new AtomicReferenceArray<>(INITIAL_TABLE_SIZE);
+	private int cellCount; // guarded by the write lock
+
+	public ConcurrentEventCounter(RBTree tree) {
+		this.tree = tree;
+	}
+
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Cell cell = delta <= LOCK_FREE_MAX_DELTA ? findCell(id) : null;
+		if (cell != null && cell.live) {
+			cell.pending.add(delta);
+			if (!cell.warm) {
+				cell.warm = true;
+			}
+			// a writer may have removed id after we looked at the cell; if so
+			// hand our delta (and any other stragglers) to the writer path
+			if (!cell.live) {
+				return drainDeadCell(cell);
+			}
+			if (!cell.dirty.get() && cell.dirty.compareAndSet(false, true)) {
+				dirtyCells.add(cell);
+			}
+			try {
+				return currentCount(cell);
+			} catch (ArithmeticException e) {
+				// id's count would overflow: take the delta back and fail as the tree would
+				cell.pending.add(-delta);
+				throw e;
+			}
+		}
+		long stamp = lock.writeLock();
+		try {
+			return increaseLocked(id, delta);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		long stamp = lock.writeLock();
+		try {
+			Cell cell = findCell(id);
+			if (cell != null && cell.live) {
+				fold(cell);
+			}
+			long result = tree.reduce(id, delta);
+			if (cell != null && cell.live) {
+				cell.committed = result;
+				if (result == 0) {
+					cell.live = false;
+					// increments that slipped in between the fold and now belong
+					// to a fresh incarnation of id
+					long leftover = cell.pending.sumThenReset();
+					if (leftover > 0) {
+						try {
+							cell.committed = tree.increase(id, leftover);
+							cell.live = true;
+						} catch (ArithmeticException e) {
+							// the reduce stands; the stragglers wait in the dead cell for the next increase of id
+							cell.pending.add(leftover);
+						}
+					}
+				}
+			}
+			return result;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public long count(int id) {
+		Cell cell = findCell(id);
+		if (cell != null && cell.live) {
+			return currentCount(cell);
+		}
+		long stamp = lock.readLock();
+		try {
+			return tree.count(id);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	//
+	// The subtree sums only cover folded deltas. With no cell queued for
+	// folding the tree is up to date, and the sum is read under the read lock
+	// alongside other readers. Otherwise the queued cells are folded first,
+	// under the exclusive write lock, which waits for every reader and blocks
+	// the locked paths meanwhile. A steady stream of increases to hot IDs
+	// keeps cells queued, so expect the write lock then.
+	//
+	public long rangeSum(int lo, int hi) {
+		long stamp = lock.readLock();
+		try {
+			// checked under the lock: folding, the only consumer of the queue, needs the write lock
+			if (dirtyCells.isEmpty()) {
+				return tree.rangeSum(lo, hi);
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		stamp = lock.writeLock();
+		try {
+			foldAll();
+			return tree.rangeSum(lo, hi);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public long nextId(int id) {
+		// pending deltas never change which IDs are present
+		long stamp = lock.readLock();
+		try {
+			return tree.nextId(id);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public long previousId(int id) {
+		long stamp = lock.readLock();
+		try {
+			return tree.previousId(id);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	// folds every pending delta into the tree, so that it can be read directly
+	public void flush() {
+		long stamp = lock.writeLock();
+		try {
+			foldAll();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// committed + pending, read consistently with respect to folding
+	private long currentCount(Cell cell) {
+		long stamp = lock.tryOptimisticRead();
+		long committed = cell.committed, pending = cell.pending.sum();
+		if (lock.validate(stamp)) {
+			return Math.addExact(committed, pending);
+		}
+		stamp = lock.readLock();
+		try {
+			return Math.addExact(cell.committed, cell.pending.sum());
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private long drainDeadCell(Cell cell) {
+		long stamp = lock.writeLock();
+		try {
+			long leftover = cell.pending.sumThenReset();
+			if (leftover > 0) {
+				try {
+					return increaseLocked(cell.id, leftover);
+				} catch (ArithmeticException e) {
+					cell.pending.add(leftover);
+					throw e;
+				}
+			}
+			return countLocked(cell.id, findCell(cell.id));
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// the count of id while holding the write lock
+	private long countLocked(int id, Cell cell) {
+		if (cell != null && cell.live) {
+			return cell.committed + cell.pending.sum();
+		}
+		return tree.count(id);
+	}
+
+	private long increaseLocked(int id, long delta) {
+		Cell cell = findCell(id);
+		long stragglers = 0;
+		if (cell == null) {
+			cell = insertCell(id);
+		} else if (!cell.live) {
+			// a dead cell may still hold stragglers from before it died
+			stragglers = cell.pending.sumThenReset();
+		} else {
+			fold(cell);
+		}
+		try {
+			cell.committed = tree.increase(id, Math.addExact(delta, stragglers));
+		} catch (ArithmeticException e) {
+			cell.pending.add(stragglers);
+			throw e;
+		}
+		cell.live = cell.committed > 0;
+		return cell.committed;
+	}
+
+	//
+	// Moves the pending delta of one cell into the tree, or leaves it pending
+	// and rethrows if the tree's total would overflow. Caller holds the write
+	// lock.
+	//
+	private void fold(Cell cell) {
+		cell.dirty.set(false);
+		long delta = cell.pending.sumThenReset();
+		if (delta != 0) {
+			try {
+				cell.committed = tree.increase(cell.id, delta);
+			} catch (ArithmeticException e) {
+				cell.pending.add(delta);
+				if (cell.dirty.compareAndSet(false, true)) {
+					dirtyCells.add(cell);
+				}
+				throw e;
+			}
+		}
+	}
+
+	private void foldAll() {
+		Cell cell;
+		while ((cell = dirtyCells.poll()) != null) {
+			if (cell.live) {
+				fold(cell);
+			} else {
+				// stragglers in a dead cell are drained by the thread that added them
+				cell.dirty.set(false);
+			}
+		}
+	}
+
+	// lock-free lookup
+	private Cell findCell(int id) {
+		AtomicReferenceArray<Cell> table = cells;
+		int mask = table.length() - 1;
+		for (int i = IdHash.slot(id, mask);; i = (i + 1) & mask) {
+			Cell cell = table.get(i);
+			if (cell == null || cell.id == id) {
+				return cell;
+			}
+		}
+	}
+
+	private Cell insertCell(int id) {
+		if (2 * (cellCount + 1) > cells.length()) {
+			rehash();
+		}
+		Cell cell = new Cell(id);
+		AtomicReferenceArray<Cell> table = cells;
+		int mask = table.length() - 1;
+		int i = IdHash.slot(id, mask);
+		while (table.get(i) != null) {
+			i = (i + 1) & mask;
+		}
+		table.set(i, cell);
+		cellCount++;
+		return cell;
+	}
+
+	//
+	// Turns the cell of a present ID back into a plain tree entry. Increments
+	// that slip in after live goes false see it and drain themselves, like
+	// those to a removed ID; the ones before are folded here.
+	//
+	private void retire(Cell cell) {
+		fold(cell);
+		cell.live = false;
+		long leftover = cell.pending.sumThenReset();
+		if (leftover > 0) {
+			try {
+				cell.committed = tree.increase(cell.id, leftover);
+			} catch (ArithmeticException e) {
+				// the cell stays; the rehash that retired it fails in its caller
+				cell.pending.add(leftover);
+				cell.live = true;
+				throw e;
+			}
+		}
+	}
+
+	// rebuilds the table, retiring cold cells and dropping dead ones that hold nothing
+	private void rehash() {
+		AtomicReferenceArray<Cell> old = cells;
+		int live = 0;
+		for (int i = 0; i < old.length(); i++) {
+			Cell cell = old.get(i);
+			if (cell == null) {
+				continue;
+			}
+			if (cell.live && !cell.warm) {
+				retire(cell);
+			}
+			cell.warm = false;
+			if (cell.live || cell.pending.sum() != 0) {
+				live++;
+			}
+		}
+		int length = INITIAL_TABLE_SIZE;
+		while (length < 4 * (live + 1)) {
+			length <<= 1;
+		}
+		AtomicReferenceArray<Cell> table = new AtomicReferenceArray<>(length);
+		int mask = length - 1;
+		for (int j = 0; j < old.length(); j++) {
+			Cell cell = old.get(j);
+			if (cell != null && (cell.live || cell.pending.sum() != 0)) {
+				int i = IdHash.slot(cell.id, mask);
+				while (table.get(i) != null) {
+					i = (i + 1) & mask;
+				}
+				table.set(i, cell);
+			}
+		}
+		cellCount = live;
+		cells = table;
+	}
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+
+//
+// An event counter for IDs that fill most of a bounded range, e.g. shard IDs
+// 0..50M. Instead of a node per event it keeps one slot per ID of the range:
+//   - counts[id - base], so count is a single array read;
+//   - a Fenwick tree over the same slots for the prefix sums behind inRange;
+//   - an occupancy bitmap with summary levels (one bit per non-empty word of
+//     the level below), so next/previous skip empty stretches 64^k IDs at a
+//     time.
+// IDs outside the range still work: they go to an RBTree on the side.
+//
+public class DenseEventCounter implements EventCounter {
+
+	// the largest range the arrays may cover
+	static final long MAX_SPAN = 1L << 30;
+
+	private final int base; // the ID of slot 0
+	private final int span; // number of slots
+	private final long[] counts;
+	private final long[] fenwick; // 1-based: fenwick[i] sums the slots (i - lowbit(i), i]
+	private final OccupancyBitmap occupied;
+	private final RBTree overflow = new RBTree(); // IDs outside [base, base + span)
+	private long total;
+	private int size; // events in the slots
+	private int overflowSize; // events in the overflow tree
+
+	//
+	// A bitmap whose level k + 1 has one bit per non-empty word of level k, up
+	// to a single word, so a search for the next set bit never scans more than
+	// one word per level.
+	//
+	static final class OccupancyBitmap {
+		private final long[][] levels;
+
+		OccupancyBitmap(long bits) {
+			int depth = 1;
+			for (long words = (bits + 63) >>> 6; words > 1; words = (words + 63) >>> 6) {
+				depth++;
+			}
+			levels = new long[depth][];
+			long length = Math.max(bits, 1);
+			for (int level = 0; level < depth; level++) {
+				length = (length + 63) >>> 6;
+				levels[level] = new long[(int) length];
+			}
+		}
+
+		void set(int index) {
+			for (int level = 0; level < levels.length; level++) {
+				long word = levels[level][index >>> 6];
+				levels[level][index >>> 6] = word | (1L << index);
+				if (word != 0) {
+					return; // the levels above already know this word is non-empty
+				}
+				index >>>= 6;
+			}
+		}
+
+		void clear(int index) {
+			for (int level = 0; level < levels.length; level++) {
+				long word = levels[level][index >>> 6] & ~(1L << index);
+				levels[level][index >>> 6] = word;
+				if (word != 0) {
+					return;
+				}
+				index >>>= 6;
+			}
+		}
+
+		// the first set bit at or after index, or -1
+		int nextSetBit(int index) {
+			int level = 0;
+			while (true) {
+				int w = index >>> 6;
+				if (w >= levels[level].length) {
+					return -1;
+				}
+				long bits = levels[level][w] & (-1L << index);
+				if (bits != 0) {
+					index = (w << 6) + Long.numberOfTrailingZeros(bits);
+					break;
+				}
+				if (++level == levels.length) {
+					return -1;
+				}
+				index = w + 1;
+			}
+			while (level > 0) {
+				level--;
+				index = (index << 6) + Long.numberOfTrailingZeros(levels[level][index]);
+			}
+			return index;
+		}
+
+		// the last set bit at or before index, or -1
+		int previousSetBit(int index) {
+			int level = 0;
+			while (true) {
+				if (index < 0) {
+					return -1;
+				}
+				int w = index >>> 6;
+				long bits = levels[level][w] & (-1L >>> (63 - (index & 63)));
+				if (bits != 0) {
+					index = (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+					break;
+				}
+				if (++level == levels.length) {
+					return -1;
+				}
+				index = w - 1;
+			}
+			while (level > 0) {
+				level--;
+				index = (index << 6) + 63 - Long.numberOfLeadingZeros(levels[level][index]);
+			}
+			return index;
+		}
+	}
+
+	// an empty counter whose slots cover the IDs minId..maxId
+	public DenseEventCounter(int minId, int maxId) {
+		long slots = (long) maxId - minId + 1;
+		if (slots <= 0 || slots > MAX_SPAN) {
+			throw new IllegalArgumentException("ID range too large for a dense counter: " + minId + ".." + maxId);
+		}
+		this.base = minId;
+		this.span = (int) slots;
+		this.counts = new long[span];
+		this.fenwick = new long[span + 1];
+		this.occupied = new OccupancyBitmap(span);
+	}
+
+	//
+	// Builds a counter whose slots cover minId..maxId from events sorted by ID.
+	// The Fenwick tree is filled in linear time by pushing every node's total
+	// into its parent once.
+	//
+	public static DenseEventCounter fromSorted(BulkLoader.SortedEvents events, int minId, int maxId) throws IOException {
+		DenseEventCounter counter = new DenseEventCounter(minId, maxId);
+		while (events.next()) {
+			int id = events.id();
+			long count = events.count();
+			counter.total = Math.addExact(counter.total, count);
+			if (!counter.inRange(id)) {
+				counter.overflow.increase(id, count);
+				counter.overflowSize++;
+				continue;
+			}
+			int slot = id - counter.base;
+			counter.counts[slot] = count;
+			counter.fenwick[slot + 1] = count;
+			counter.occupied.set(slot);
+			counter.size++;
+		}
+		long[] fenwick = counter.fenwick;
+		for (int i = 1; i <= counter.span; i++) {
+			int parent = i + (i & -i);
+			if (parent <= counter.span) {
+				fenwick[parent] += fenwick[i];
+			}
+		}
+		return counter;
+	}
+
+	// the number of events, in the slots and in the overflow tree
+	public int size() {
+		return size + overflowSize;
+	}
+
+	// throws ArithmeticException, leaving the counter untouched, if the total would overflow
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Math.addExact(total, delta);
+		if (!inRange(id)) {
+			long result = overflow.increase(id, delta);
+			if (result == delta) {
+				overflowSize++; // counts are positive, so id was not there before
+			}
+			total += delta;
+			return result;
+		}
+		int slot = id - base;
+		if (counts[slot] == 0) {
+			occupied.set(slot);
+			size++;
+		}
+		counts[slot] += delta;
+		add(slot, delta);
+		total += delta;
+		return counts[slot];
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		if (!inRange(id)) {
+			long before = overflow.count(id);
+			long result = overflow.reduce(id, delta);
+			total -= before - result;
+			if (before > 0 && result == 0) {
+				overflowSize--;
+			}
+			return result;
+		}
+		int slot = id - base;
+		long count = counts[slot];
+		if (count == 0) {
+			return 0;
+		}
+		long removed = Math.min(count, delta);
+		counts[slot] = count - removed;
+		add(slot, -removed);
+		total -= removed;
+		if (counts[slot] == 0) {
+			occupied.clear(slot);
+			size--;
+		}
+		return counts[slot];
+	}
+
+	public long count(int id) {
+		return inRange(id) ? counts[id - base] : overflow.count(id);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		long sum = overflow.rangeSum(lo, hi);
+		long first = Math.max((long) lo, base), last = Math.min((long) hi, (long) base + span - 1);
+		if (first <= last) {
+			sum += prefixSum((int) (last - base) + 1) - prefixSum((int) (first - base));
+		}
+		return sum;
+	}
+
+	public long nextId(int id) {
+		long dense = NO_ID;
+		if ((long) id < (long) base + span - 1) {
+			int slot = occupied.nextSetBit((int) Math.max((long) id - base + 1, 0));
+			if (slot >= 0) {
+				dense = (long) base + slot;
+			}
+		}
+		long other = overflow.nextId(id);
+		if (dense == NO_ID) {
+			return other;
+		}
+		return other == NO_ID ? dense : Math.min(dense, other);
+	}
+
+	public long previousId(int id) {
+		long dense = NO_ID;
+		if (id > base) {
+			int slot = occupied.previousSetBit((int) Math.min((long) id - base - 1, span - 1));
+			if (slot >= 0) {
+				dense = (long) base + slot;
+			}
+		}
+		long other = overflow.previousId(id);
+		if (dense == NO_ID) {
+			return other;
+		}
+		return other == NO_ID ? dense : Math.max(dense, other);
+	}
+
+	// the events in ID order: the overflow IDs below the slots, the slots, then the
+	// overflow IDs above them
+	BulkLoader.SortedEvents events() {
+		BulkLoader.SortedEvents outside = overflow.events();
+		int n = size + overflowSize;
+		return new BulkLoader.SortedEvents() {
+			private boolean outsidePending = false; // outside is positioned on an unread event
+			private boolean outsideDone = false;
+			private int slot = -1;
+			private boolean slotPending = false;
+			private boolean fromOutside;
+
+			public int size() {
+				return n;
+			}
+
+			public boolean next() throws IOException {
+				if (!outsidePending && !outsideDone) {
+					outsidePending = outside.next();
+					outsideDone = !outsidePending;
+				}
+				if (!slotPending && slot < span) {
+					slot = slot + 1 < span ? occupied.nextSetBit(slot + 1) : -1;
+					if (slot < 0) {
+						slot = span;
+					}
+					slotPending = slot < span;
+				}
+				if (outsidePending && (!slotPending || outside.id() < base + slot)) {
+					fromOutside = true;
+					outsidePending = false;
+					return true;
+				}
+				if (slotPending) {
+					fromOutside = false;
+					slotPending = false;
+					return true;
+				}
+				return false;
+			}
+
+			public int id() {
+				return fromOutside ? outside.id() : base + slot;
+			}
+
+			public long count() {
+				return fromOutside ? outside.count() : counts[slot];
+			}
+		};
+	}
+
+	private boolean inRange(int id) {
+		return id >= base && (long) id - base < span;
+	}
+
+	// adds delta to slot in the Fenwick tree
+	private void add(int slot, long delta) {
+		for (int i = slot + 1; i <= span; i += i & -i) {
+			fenwick[i] += delta;
+		}
+	}
+
+	// the total of the first n slots
+	private long prefixSum(int n) {
+		long sum = 0;
+		for (int i = n; i > 0; i -= i & -i) {
+			sum += fenwick[i];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,28 @@
+//
+// The event counter operations as plain queries. Every method returns its
+// result as a primitive and allocates nothing, so the counter can be embedded
+// in-process; bbst is just a printer on top of it. The queries come from
+// EventQueries; a read-only view implements only those.
+//
+// Deltas must be positive, so every present ID has a positive count. An
+// engine throws IllegalArgumentException for a zero or negative delta, before
+// changing anything (see checkDelta); bbst rejects such commands up front.
+//
+public interface EventCounter extends EventQueries {
+
+	// Increases the count of id by delta, inserting id if it is not present.
+	// Returns the count of id after the addition.
+	long increase(int id, long delta);
+
+	// Decreases the count of id by delta, removing id once its count drops to
+	// zero or below. Returns the count after the reduction, or 0 if id was
+	// removed or not present.
+	long reduce(int id, long delta);
+
+	// the check every engine runs on a delta before it changes anything
+	static void checkDelta(long delta) {
+		if (delta <= 0) {
+			throw new IllegalArgumentException("A delta must be positive: " + delta);
+		}
+	}
+}
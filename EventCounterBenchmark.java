@@ -0,0 +1,353 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+//
+// Benchmarks every counter operation, the bulk build and a full bbst command
+// replay, so that a change to an engine can be checked against the numbers
+// before and after.
+//
+// Each operation runs over a key stream drawn up front from one of three
+// distributions (uniform, zipf, sequential), once with IDs that are present
+// and once with IDs that are not. A run reports:
+//   - throughput, from the timed rounds after the warm-up;
+//   - latency percentiles, from one extra round that times every call;
+//   - bytes allocated per operation, read from the JVM's per-thread counters.
+// For build and replay a round is one sample, so their percentiles are of
+// the per-round average.
+// Every round, warm-ups and the latency round included, starts from a
+// freshly built counter of -events events, built outside the timer, so an
+// absent ID is absent at least the first time a round draws it. Within a
+// round it stays present once increased, as a real workload's would.
+//
+// usage: java EventCounterBenchmark [-engine=rbtree] [-events=N] [-ops=M]
+//            [-warmup=R] [-rounds=R] [-op=increase,count,...] [-dist=uniform,zipf,...]
+//            [-zipf=S] [-range=W] [-seed=S] [-hot-cache=N]
+//
+public class EventCounterBenchmark {
+
+	private static final String[] OPERATIONS = { "increase", "reduce", "count", "inrange", "next", "previous", "churn",
+			"build", "replay" };
+	private static final String[] DISTRIBUTIONS = { "uniform", "zipf", "sequential" };
+
+	// large enough that reduce(id, 1) never removes an event during a run
+	private static final long INITIAL_COUNT = 1L << 30;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private String engine = "rbtree";
+	private int events = 1 << 16;
+	private int ops = 1 << 20;
+	private int warmupRounds = 3;
+	private int rounds = 5;
+	private double zipfExponent = 0.99;
+	private int rangeWidth = 64; // events covered by one inrange query
+	private long seed = 42;
+	private int hotCache = 0; // entries of the rbtree engine's hot node cache
+	private String[] operations = OPERATIONS;
+	private String[] distributions = DISTRIBUTIONS;
+
+	private int[] ids;
+	private long[] counts;
+	private long sink; // keeps the JIT from discarding the results
+
+	public static void main(String[] args) throws IOException {
+		EventCounterBenchmark benchmark = new EventCounterBenchmark();
+		for (String arg : args) {
+			if (!benchmark.parseFlag(arg)) {
+				System.out.println("\n Unknown option: '" + arg + "'\n");
+				return;
+			}
+		}
+		if (!bbst.isKnownEngine(benchmark.engine)) {
+			System.out.println("\n Unknown engine: '" + benchmark.engine + "'\n");
+			return;
+		}
+		benchmark.run();
+	}
+
+	private boolean parseFlag(String arg) {
+		int eq = arg.indexOf('=');
+		if (!arg.startsWith("-") || eq < 0) {
+			return false;
+		}
+		String value = arg.substring(eq + 1);
+		switch (arg.substring(1, eq)) {
+		case "engine":
+			engine = value;
+			return true;
+		case "events":
+			events = Integer.parseInt(value);
+			return true;
+		case "ops":
+			ops = Integer.parseInt(value);
+			return true;
+		case "warmup":
+			warmupRounds = Integer.parseInt(value);
+			return true;
+		case "rounds":
+			rounds = Integer.parseInt(value);
+			return true;
+		case "zipf":
+			zipfExponent = Double.parseDouble(value);
+			return true;
+		case "range":
+			rangeWidth = Integer.parseInt(value);
+			return true;
+		case "seed":
+			seed = Long.parseLong(value);
+			return true;
+		case "hot-cache":
+			hotCache = Integer.parseInt(value);
+			return true;
+		case "op":
+			operations = value.split(",");
+			return true;
+		case "dist":
+			distributions = value.split(",");
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void run() throws IOException {
+		// the events sit on the even IDs, so every odd ID is absent
+		ids = new int[events];
+		counts = new long[events];
+		for (int i = 0; i < events; i++) {
+			ids[i] = 2 * i;
+			counts[i] = INITIAL_COUNT;
+		}
+		System.out.printf("engine=%s events=%d ops=%d warmup=%d rounds=%d%n", engine, events, ops, warmupRounds, rounds);
+		System.out.printf("%-9s %-10s %-7s %13s %7s %7s %7s %8s %9s%n", "op", "dist", "keys", "ops/s", "p50", "p90",
+				"p99", "p99.9", "B/op");
+		for (String operation : operations) {
+			if ("build".equals(operation)) {
+				runBuild();
+			} else if ("replay".equals(operation)) {
+				for (String distribution : distributions) {
+					runReplay(distribution);
+				}
+			} else if (Arrays.asList(OPERATIONS).contains(operation)) {
+				for (String distribution : distributions) {
+					runOperation(operation, distribution, true);
+					runOperation(operation, distribution, false);
+				}
+			} else {
+				System.out.println("\n Unknown operation: '" + operation + "'\n");
+			}
+		}
+		System.out.println("checksum " + sink);
+	}
+
+	private void runOperation(String operation, String distribution, boolean present) throws IOException {
+		int[] keys = keys(distribution, present);
+		for (int round = 0; round < warmupRounds; round++) {
+			sink += apply(build(), operation, keys);
+		}
+		long nanos = 0, bytes = 0;
+		for (int round = 0; round < rounds; round++) {
+			EventCounter counter = build();
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			sink += apply(counter, operation, keys);
+			nanos += System.nanoTime() - start;
+			bytes += allocatedBytes() - bytesBefore;
+		}
+		long[] latencies = new long[keys.length];
+		EventCounter counter = build();
+		for (int i = 0; i < keys.length; i++) {
+			long start = System.nanoTime();
+			sink += apply(counter, operation, keys[i]);
+			latencies[i] = System.nanoTime() - start;
+		}
+		report(operation, distribution, present ? "present" : "absent", (long) rounds * keys.length, nanos, bytes,
+				latencies);
+	}
+
+	private long apply(EventCounter counter, String operation, int[] keys) {
+		long total = 0;
+		for (int key : keys) {
+			total += apply(counter, operation, key);
+		}
+		return total;
+	}
+
+	private long apply(EventCounter counter, String operation, int key) {
+		switch (operation) {
+		case "increase":
+			return counter.increase(key, 1);
+		case "reduce":
+			return counter.reduce(key, 1);
+		case "count":
+			return counter.count(key);
+		case "inrange":
+			return counter.rangeSum(key, key + 2 * rangeWidth);
+		case "next":
+			return counter.nextId(key);
+		case "previous":
+			return counter.previousId(key);
+		case "churn":
+			// removes the event and adds it back: one delete and one insert
+			counter.reduce(key, Long.MAX_VALUE);
+			return counter.increase(key, 1);
+		default:
+			throw new IllegalArgumentException("Unknown operation: " + operation);
+		}
+	}
+
+	// the bulk build from sorted events; one "op" is one event
+	private void runBuild() throws IOException {
+		for (int round = 0; round < warmupRounds; round++) {
+			sink += build().count(0);
+		}
+		long nanos = 0, bytes = 0;
+		long[] latencies = new long[rounds];
+		for (int round = 0; round < rounds; round++) {
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			sink += build().count(0);
+			latencies[round] = (System.nanoTime() - start) / Math.max(events, 1);
+			nanos += System.nanoTime() - start;
+			bytes += allocatedBytes() - bytesBefore;
+		}
+		report("build", "sorted", "-", (long) rounds * events, nanos, bytes, latencies);
+	}
+
+	// a bbst command script parsed and executed end to end, printing into a
+	// discarding writer; one "op" is one command
+	private void runReplay(String distribution) throws IOException {
+		byte[] script = script(distribution);
+		for (int round = 0; round < warmupRounds; round++) {
+			replay(build(), script);
+		}
+		long nanos = 0, bytes = 0;
+		long[] latencies = new long[rounds];
+		for (int round = 0; round < rounds; round++) {
+			EventCounter counter = build();
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			replay(counter, script);
+			latencies[round] = (System.nanoTime() - start) / ops;
+			nanos += System.nanoTime() - start;
+			bytes += allocatedBytes() - bytesBefore;
+		}
+		report("replay", distribution, "mixed", (long) rounds * ops, nanos, bytes, latencies);
+	}
+
+	private void replay(EventCounter counter, byte[] script) throws IOException {
+		ResultWriter out = new ResultWriter(OutputStream.nullOutputStream(), false);
+		bbst.runCommands(counter, new CommandReader(new ByteArrayInputStream(script)), out);
+		out.flush();
+		sink += counter.rangeSum(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	// a mix of every command over the distribution, half of them on absent IDs
+	private byte[] script(String distribution) {
+		int[] present = keys(distribution, true);
+		Random random = new Random(seed + 1);
+		String[] commands = { "increase", "reduce", "count", "inrange", "next", "previous" };
+		ByteArrayOutputStream script = new ByteArrayOutputStream(ops * 16);
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < ops; i++) {
+			int key = present[i] + random.nextInt(2);
+			String command = commands[random.nextInt(commands.length)];
+			line.setLength(0);
+			line.append(command).append(' ').append(key);
+			if ("increase".equals(command) || "reduce".equals(command)) {
+				line.append(' ').append(1 + random.nextInt(8));
+			} else if ("inrange".equals(command)) {
+				line.append(' ').append(key + 2 * rangeWidth);
+			}
+			line.append('\n');
+			byte[] bytes = line.toString().getBytes(StandardCharsets.US_ASCII);
+			script.write(bytes, 0, bytes.length);
+		}
+		return script.toByteArray();
+	}
+
+	private EventCounter build() throws IOException {
+		return bbst.withHotCache(bbst.buildCounter(engine, new BulkLoader.ArrayEvents(ids, counts, events)), hotCache);
+	}
+
+	//
+	// ops IDs drawn from the distribution. The distribution picks an event
+	// index; present maps it to that event's ID and absent to the gap after it.
+	//
+	private int[] keys(String distribution, boolean present) {
+		Random random = new Random(seed);
+		int[] keys = new int[ops];
+		switch (distribution) {
+		case "uniform":
+			for (int i = 0; i < ops; i++) {
+				keys[i] = random.nextInt(events);
+			}
+			break;
+		case "sequential":
+			for (int i = 0; i < ops; i++) {
+				keys[i] = i % events;
+			}
+			break;
+		case "zipf":
+			// rank r is drawn with probability proportional to 1 / r^s; the ranks
+			// are shuffled over the events so the hot IDs are spread over the tree
+			double[] cdf = new double[events];
+			double total = 0;
+			for (int r = 0; r < events; r++) {
+				total += 1 / Math.pow(r + 1, zipfExponent);
+				cdf[r] = total;
+			}
+			int[] eventOfRank = new int[events];
+			for (int r = 0; r < events; r++) {
+				int j = random.nextInt(r + 1);
+				eventOfRank[r] = eventOfRank[j];
+				eventOfRank[j] = r;
+			}
+			for (int i = 0; i < ops; i++) {
+				int rank = Arrays.binarySearch(cdf, random.nextDouble() * total);
+				rank = rank >= 0 ? rank : Math.min(-rank - 1, events - 1);
+				keys[i] = eventOfRank[rank];
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown distribution: " + distribution);
+		}
+		for (int i = 0; i < ops; i++) {
+			keys[i] = 2 * keys[i] + (present ? 0 : 1);
+		}
+		return keys;
+	}
+
+	// summed over all live threads, so the fork-join workers of the parallel
+	// build are counted too
+	private static long allocatedBytes() {
+		long total = 0;
+		for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+			total += Math.max(bytes, 0);
+		}
+		return total;
+	}
+
+	private static void report(String operation, String distribution, String keys, long totalOps, long nanos,
+			long bytes, long[] latencies) {
+		Arrays.sort(latencies);
+		System.out.printf("%-9s %-10s %-7s %13.0f %7d %7d %7d %8d %9.2f%n", operation, distribution, keys,
+				totalOps * 1e9 / Math.max(nanos, 1), percentile(latencies, 0.50), percentile(latencies, 0.90),
+				percentile(latencies, 0.99), percentile(latencies, 0.999), (double) bytes / totalOps);
+	}
+
+	// in nanoseconds, from sorted samples
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min((int) (p * sorted.length), sorted.length - 1)];
+	}
+}
@@ -0,0 +1,734 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+//
+// A differential check of every exact engine against a TreeMap model. Each
+// engine is built through bbst.buildCounter from a random sorted input (sizes
+// 0, 1, 2 and up, so the edge shapes of the bulk builds are covered), then
+// driven through a random mix of all six operations, comparing every result
+// with the model, and of non-positive deltas, which every engine must reject;
+// at the end its events are compared in order. Also checks:
+//   - BulkLoader against a summing model, with a tiny chunk size so that the
+//     input spills to several run files;
+//   - RBTree.generateRBT from a stream, applyBatch and the hot node cache;
+//   - RBTree's order queries (sumBelow, selectByWeight, topK), range scans,
+//     range cursor and countAll against the model, between random changes;
+//   - ShardedEventCounter with rebalances between the operations, and with
+//     several producer threads while a rebalance is under way;
+//   - ConcurrentEventCounter with several producer threads and a reader;
+//   - a snapshot write, open and restore round trip, also with changes
+//     made while the engine is still being built;
+//   - a write-ahead logged counter that compacts in the background, closed
+//     and recovered from its snapshot and log.
+// Known regressions are checked first, by hand. Prints one line per check and throws AssertionError on the first mismatch.
+// The sketch engine is approximate and is not covered.
+//
+// usage: java EventCounterCheck [seed] [ops]
+//
+public class EventCounterCheck {
+
+	private static final String[] ENGINES = { "rbtree", "array", "concurrent", "snapshot", "bptree", "dense", "tiered",
+			"auto" };
+	private static final int[] SIZES = { 0, 1, 2, 3, 7, 100, 5000 };
+	private static final int STRESS_OPS = 20000; // per producer, enough for the shards to skew
+
+	private final Random random;
+	private final int ops;
+	private int span; // IDs are drawn from [-span, span], plus the int extremes
+
+	private EventCounterCheck(long seed, int ops) {
+		this.random = new Random(seed);
+		this.ops = ops;
+	}
+
+	public static void main(String[] args) throws IOException {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		EventCounterCheck check = new EventCounterCheck(seed, ops);
+		regressions();
+		check.bulkLoader();
+		for (String engine : ENGINES) {
+			for (int n : SIZES) {
+				TreeMap<Integer, Long> model = check.input(n);
+				EventCounter counter = bbst.buildCounter(engine, events(model));
+				check.run(engine + " n=" + n, counter, model, null);
+			}
+			System.out.println("ok " + engine);
+		}
+		check.rbtreeBuilds();
+		check.rbtreeQueries();
+		check.sharded();
+		check.shardedStress();
+		check.concurrentStress();
+		check.snapshotRoundTrip();
+		check.loggedRecovery("rbtree");
+		check.loggedRecovery("snapshot");
+	}
+
+	// cases that once broke an engine, checked before the random runs
+	private static void regressions() throws IOException {
+		// a one-event ArrayRBTree had a red root, and the first insert corrupted it
+		ArrayRBTree single = ArrayRBTree.fromSorted(new int[] { 5 }, new long[] { 1 }, 1);
+		single.increase(31, 1);
+		if (single.nextId(5) != 31 || single.previousId(31) != 5 || single.rangeSum(0, 40) != 2) {
+			throw new AssertionError("one-event ArrayRBTree after an insert");
+		}
+
+		// a fold that overflowed the total dropped the pending deltas of its cell
+		long half = Long.MAX_VALUE / 2;
+		ConcurrentEventCounter concurrent = (ConcurrentEventCounter) bbst.buildCounter("concurrent",
+				new BulkLoader.ArrayEvents(new int[] { 1, 2 }, new long[] { half, half - 10 }, 2));
+		concurrent.increase(1, 1); // makes the cells, so the next increases are lock-free
+		concurrent.increase(2, 1);
+		concurrent.increase(1, 5);
+		concurrent.increase(2, 5);
+		try {
+			concurrent.flush();
+			throw new AssertionError("a concurrent fold past the total did not throw");
+		} catch (ArithmeticException e) {
+			// expected; the deltas stay pending
+		}
+		if (concurrent.count(2) != half - 4) {
+			throw new AssertionError("a failed concurrent fold lost deltas: " + concurrent.count(2));
+		}
+		concurrent.reduce(1, 100);
+		concurrent.flush();
+		if (concurrent.rangeSum(2, 2) != half - 4 || concurrent.rangeSum(1, 2) != 2 * half - 98) {
+			throw new AssertionError("a retried concurrent fold");
+		}
+		concurrent = (ConcurrentEventCounter) bbst.buildCounter("concurrent",
+				new BulkLoader.ArrayEvents(new int[] { 3 }, new long[] { Long.MAX_VALUE - 10 }, 1));
+		concurrent.increase(3, 1);
+		concurrent.increase(3, 5);
+		try {
+			concurrent.increase(3, 5);
+			throw new AssertionError("a lock-free increase past the count did not throw");
+		} catch (ArithmeticException e) {
+			// expected; the delta is taken back
+		}
+		concurrent.flush();
+		if (concurrent.count(3) != Long.MAX_VALUE - 4) {
+			throw new AssertionError("a lock-free increase past the count changed it");
+		}
+		System.out.println("ok regressions");
+	}
+
+	// random unsorted input with repeated IDs, spilled to several runs
+	private void bulkLoader() throws IOException {
+		TreeMap<Integer, Long> model = new TreeMap<>();
+		span = 3000;
+		try (BulkLoader loader = new BulkLoader(64)) {
+			for (int i = 0; i < 10000; i++) {
+				int id = id();
+				long count = 1 + random.nextInt(1000);
+				loader.add(id, count);
+				model.merge(id, count, Long::sum);
+			}
+			try (BulkLoader.SortedEvents events = loader.finish()) {
+				compareEvents("bulk loader", events, model);
+			}
+		}
+		System.out.println("ok bulk loader");
+	}
+
+	private void rbtreeBuilds() throws IOException {
+		for (int n : SIZES) {
+			TreeMap<Integer, Long> model = input(n);
+			RBTree streamed = new RBTree();
+			streamed.generateRBT(new StreamedEvents(events(model)));
+			run("rbtree streamed n=" + n, streamed, model, null);
+
+			model = input(n);
+			RBTree batched = new RBTree();
+			batched.generateRBT(events(model));
+			TreeMap<Integer, Long> batchModel = new TreeMap<>(model);
+			int b = 1 + random.nextInt(2 * n + 1);
+			int[] ids = new int[b];
+			long[] deltas = new long[b];
+			for (int i = 0; i < b; i++) {
+				ids[i] = id();
+				deltas[i] = 1 + random.nextInt(100);
+				batchModel.merge(ids[i], deltas[i], Long::sum);
+			}
+			batched.applyBatch(ids, deltas);
+			run("rbtree applyBatch n=" + n, batched, batchModel, null);
+
+			model = input(n);
+			RBTree cached = new RBTree();
+			cached.generateRBT(events(model));
+			cached.enableHotNodeCache(16);
+			run("rbtree hot cache n=" + n, cached, model, null);
+		}
+		System.out.println("ok rbtree builds");
+	}
+
+	//
+	// The queries RBTree has beyond EventCounter, each compared with the
+	// model, on trees of every size (the empty one included) that keep
+	// changing, so the subtree sums and maxima are checked after rotations.
+	//
+	private void rbtreeQueries() throws IOException {
+		for (int n : SIZES) {
+			TreeMap<Integer, Long> model = input(n);
+			RBTree tree = new RBTree();
+			tree.generateRBT(events(model));
+			RBTree.RangeCursor cursor = tree.rangeCursor(); // reused by every check, as it may be
+			String name = "rbtree queries n=" + n;
+			checkOrderQueries(name + " as built", tree, model);
+			checkScans(name + " as built", tree, model, cursor);
+			for (int i = 0; i < ops / 10; i++) {
+				int id = id();
+				long delta = 1 + random.nextInt(1000);
+				if (random.nextBoolean()) {
+					tree.increase(id, delta);
+					model.merge(id, delta, Long::sum);
+				} else {
+					tree.reduce(id, delta);
+					model.computeIfPresent(id, (key, count) -> count > delta ? count - delta : null);
+				}
+				checkOrderQueries(name + " op " + i, tree, model);
+				checkScans(name + " op " + i, tree, model, cursor);
+				checkCountAll(name + " op " + i, tree, model);
+			}
+		}
+		System.out.println("ok rbtree queries");
+	}
+
+	private void checkOrderQueries(String name, RBTree tree, TreeMap<Integer, Long> model) {
+		int id = id();
+		long total = 0, below = 0;
+		for (Map.Entry<Integer, Long> entry : model.entrySet()) {
+			if (entry.getKey() < id) {
+				below += entry.getValue();
+			}
+			total += entry.getValue();
+		}
+		expect(name, "sumBelow(" + id + ")", below, tree.sumBelow(id));
+
+		// p runs a little past both ends of the total, and sometimes sits right on it
+		long p = random.nextInt(8) == 0 ? total : (long) (random.nextDouble() * (total + 4)) - 2;
+		long selected = EventCounter.NO_ID;
+		long position = 0;
+		for (Map.Entry<Integer, Long> entry : model.entrySet()) {
+			position += entry.getValue();
+			if (p >= 0 && p < position) {
+				selected = entry.getKey();
+				break;
+			}
+		}
+		expect(name, "selectByWeight(" + p + ")", selected, tree.selectByWeight(p));
+
+		if (random.nextInt(8) != 0) {
+			return; // topK sorts the whole model, so it is checked less often
+		}
+		// k past the size too, on the smaller trees; events with equal counts may come in any order
+		int k = random.nextInt(Math.min(model.size(), 200) + 3);
+		int[] ids = new int[k];
+		long[] counts = new long[k];
+		int found = tree.topK(k, ids, counts);
+		expect(name, "topK(" + k + ") found", Math.min(k, model.size()), found);
+		long[] largest = new long[model.size()];
+		int m = 0;
+		for (long count : model.values()) {
+			largest[m++] = count;
+		}
+		Arrays.sort(largest);
+		for (int i = 0; i < found; i++) {
+			if (counts[i] != largest[m - 1 - i] || counts[i] != model.getOrDefault(ids[i], 0L)) {
+				throw new AssertionError(name + ": topK(" + k + ") entry " + i + " is " + ids[i] + " with " + counts[i]
+						+ ", expected a count of " + largest[m - 1 - i]);
+			}
+		}
+		int[] sorted = Arrays.copyOf(ids, found);
+		Arrays.sort(sorted);
+		for (int i = 1; i < found; i++) {
+			if (sorted[i - 1] == sorted[i]) {
+				throw new AssertionError(name + ": topK(" + k + ") returned " + sorted[i] + " twice");
+			}
+		}
+	}
+
+	//
+	// rangeScan, rangeScanDescending and the cursor both ways over one range:
+	// mostly two random IDs, which reach the int extremes now and then, but
+	// also the whole int range, a single extreme, and an empty range.
+	//
+	private void checkScans(String name, RBTree tree, TreeMap<Integer, Long> model, RBTree.RangeCursor cursor) {
+		int lo = id(), hi = id();
+		switch (random.nextInt(8)) {
+		case 0:
+			lo = Integer.MIN_VALUE;
+			hi = Integer.MAX_VALUE;
+			break;
+		case 1:
+			lo = hi = random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+			break;
+		case 2:
+			break; // in the order drawn, so sometimes lo > hi
+		default:
+			int low = Math.min(lo, hi);
+			hi = Math.max(lo, hi);
+			lo = low;
+			break;
+		}
+		NavigableMap<Integer, Long> ascending = lo <= hi ? model.subMap(lo, true, hi, true) : new TreeMap<>();
+		String range = "[" + lo + ", " + hi + "]";
+		Iterator<Map.Entry<Integer, Long>> expected = ascending.entrySet().iterator();
+		int visited = tree.rangeScan(lo, hi, (id, count) -> expectNext(name, "rangeScan" + range, expected, id, count));
+		expect(name, "rangeScan" + range, ascending.size(), visited);
+
+		Iterator<Map.Entry<Integer, Long>> descending = ascending.descendingMap().entrySet().iterator();
+		visited = tree.rangeScanDescending(lo, hi,
+				(id, count) -> expectNext(name, "rangeScanDescending" + range, descending, id, count));
+		expect(name, "rangeScanDescending" + range, ascending.size(), visited);
+
+		boolean down = random.nextBoolean();
+		String op = (down ? "cursor seekDescending" : "cursor seek") + range;
+		if (down) {
+			cursor.seekDescending(lo, hi);
+		} else {
+			cursor.seek(lo, hi);
+		}
+		Iterator<Map.Entry<Integer, Long>> pulled = (down ? ascending.descendingMap() : ascending).entrySet()
+				.iterator();
+		while (cursor.next()) {
+			expectNext(name, op, pulled, cursor.id(), cursor.count());
+		}
+		if (pulled.hasNext() || cursor.next()) {
+			throw new AssertionError(name + ": " + op + " ended early, or went on after its end");
+		}
+	}
+
+	// a batch with repeated and absent IDs, of which only the first n are asked for
+	private void checkCountAll(String name, RBTree tree, TreeMap<Integer, Long> model) {
+		int[] ids = new int[random.nextInt(20)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = i > 0 && random.nextInt(4) == 0 ? ids[random.nextInt(i)] : id();
+		}
+		int n = random.nextBoolean() ? ids.length : random.nextInt(ids.length + 1);
+		int[] asked = ids.clone();
+		long[] counts = n == ids.length ? tree.countAll(ids) : tree.countAll(ids, n);
+		expect(name, "countAll of " + n + " IDs: length", n, counts.length);
+		for (int i = 0; i < n; i++) {
+			expect(name, "countAll(" + ids[i] + ")", model.getOrDefault(ids[i], 0L), counts[i]);
+		}
+		if (!Arrays.equals(asked, ids)) {
+			throw new AssertionError(name + ": countAll changed the IDs it was given");
+		}
+	}
+
+	private static void expectNext(String name, String op, Iterator<Map.Entry<Integer, Long>> expected, int id,
+			long count) {
+		if (!expected.hasNext()) {
+			throw new AssertionError(name + ": " + op + " produced an extra event " + id);
+		}
+		Map.Entry<Integer, Long> entry = expected.next();
+		if (entry.getKey() != id || entry.getValue() != count) {
+			throw new AssertionError(name + ": " + op + " produced " + id + " with " + count + ", expected "
+					+ entry.getKey() + " with " + entry.getValue());
+		}
+	}
+
+	private static void expect(String name, String op, long expected, long actual) {
+		if (expected != actual) {
+			throw new AssertionError(name + ": " + op + " returned " + actual + ", expected " + expected);
+		}
+	}
+
+	private void sharded() throws IOException {
+		for (int n : SIZES) {
+			TreeMap<Integer, Long> model = input(n);
+			ShardedEventCounter counter = ShardedEventCounter.fromSorted(events(model), 4);
+			try {
+				run("sharded rebalance n=" + n, counter, model, counter);
+			} finally {
+				counter.close();
+			}
+		}
+		System.out.println("ok sharded rebalance");
+	}
+
+	//
+	// Four producers on a four-shard counter whose IDs all fall into the two
+	// middle shards, so the shards are skewed from the start and rebalance
+	// on their own while the producers run; a reader rebalances too.
+	//
+	private void shardedStress() throws IOException {
+		ShardedEventCounter counter = new ShardedEventCounter(4);
+		int[] lows = counter.lows();
+		try {
+			stress("sharded stress", counter, 4, () -> {
+				counter.rebalance();
+				counter.rangeSum(Integer.MIN_VALUE, Integer.MAX_VALUE);
+				counter.nextId(random.nextInt(40001) - 20000);
+			});
+			if (Arrays.equals(lows, counter.lows())) {
+				throw new AssertionError("sharded stress: the shards were never rebalanced");
+			}
+		} finally {
+			counter.close();
+		}
+		System.out.println("ok sharded stress");
+	}
+
+	//
+	// Eight producers on a concurrent counter, so hot IDs take the lock-free
+	// path while cold cells are retired, and a reader that sums ranges,
+	// which folds the pending deltas, and flushes now and then.
+	//
+	private void concurrentStress() throws IOException {
+		ConcurrentEventCounter counter = (ConcurrentEventCounter) bbst.buildCounter("concurrent", events(new TreeMap<>()));
+		stress("concurrent stress", counter, 8, () -> {
+			int lo = random.nextInt(40001) - 20000;
+			counter.rangeSum(lo, lo + random.nextInt(1000));
+			counter.nextId(lo);
+			if (random.nextInt(100) == 0) {
+				counter.flush();
+			}
+		});
+		System.out.println("ok concurrent stress");
+	}
+
+	//
+	// Runs threads producers against counter while reader runs over and over
+	// on another thread. Producer t owns the IDs that are t modulo threads,
+	// so it can check increase, reduce and count against a model of its own;
+	// at the end the models are merged and compared with the events.
+	//
+	private void stress(String name, EventCounter counter, int threads, Runnable reader) throws IOException {
+		TreeMap<Integer, Long> model = new TreeMap<>();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicBoolean done = new AtomicBoolean();
+		Thread[] producers = new Thread[threads];
+		List<TreeMap<Integer, Long>> models = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int owner = t;
+			long seed = random.nextLong();
+			TreeMap<Integer, Long> mine = new TreeMap<>();
+			models.add(mine);
+			producers[t] = new Thread(() -> {
+				try {
+					produce(name, counter, new Random(seed), owner, threads, mine);
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+		}
+		Thread background = new Thread(() -> {
+			try {
+				while (!done.get()) {
+					reader.run();
+				}
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			}
+		});
+		background.start();
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		try {
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			done.set(true);
+			background.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AssertionError(name + ": interrupted");
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(name + ": " + failure.get(), failure.get());
+		}
+		for (TreeMap<Integer, Long> mine : models) {
+			model.putAll(mine);
+		}
+		if (counter instanceof ConcurrentEventCounter) {
+			((ConcurrentEventCounter) counter).flush();
+		}
+		compareEvents(name, EventSnapshot.eventsOf(counter), model);
+	}
+
+	// one producer of stress: mostly increases, so the counter fills up
+	private void produce(String name, EventCounter counter, Random random, int owner, int threads,
+			TreeMap<Integer, Long> model) {
+		for (int i = 0; i < STRESS_OPS; i++) {
+			int span = random.nextBoolean() ? 64 : 20000; // half the operations go to a few hot IDs
+			int id = (random.nextInt(2 * span / threads + 1) - span / threads) * threads + owner;
+			long delta = 1 + random.nextInt(100);
+			long expected, actual;
+			String op;
+			switch (random.nextInt(6)) {
+			case 0:
+				op = "reduce(" + id + ", " + delta + ")";
+				Long before = model.get(id);
+				expected = before == null || before <= delta ? 0 : before - delta;
+				if (expected == 0) {
+					model.remove(id);
+				} else {
+					model.put(id, expected);
+				}
+				actual = counter.reduce(id, delta);
+				break;
+			case 1:
+				op = "count(" + id + ")";
+				expected = model.getOrDefault(id, 0L);
+				actual = counter.count(id);
+				break;
+			default:
+				op = "increase(" + id + ", " + delta + ")";
+				expected = model.merge(id, delta, Long::sum);
+				actual = counter.increase(id, delta);
+				break;
+			}
+			if (expected != actual) {
+				throw new AssertionError(name + ": producer " + owner + " operation " + i + " " + op + " returned "
+						+ actual + ", expected " + expected);
+			}
+		}
+	}
+
+	private void snapshotRoundTrip() throws IOException {
+		Path file = Files.createTempFile("event-counter-check", ".snapshot");
+		try {
+			for (int n : SIZES) {
+				TreeMap<Integer, Long> model = input(n);
+				EventSnapshot.write(events(model), file, 0);
+				EventSnapshot snapshot = EventSnapshot.open(file);
+				RestoredEventCounter restored = new RestoredEventCounter(snapshot,
+						events -> bbst.buildCounter("rbtree", events));
+				run("snapshot restore n=" + n, restored, model, null);
+
+				// changes made while the engine is still being built go to the overlay
+				model = input(n);
+				EventSnapshot.write(events(model), file, 0);
+				CountDownLatch release = new CountDownLatch(1);
+				RestoredEventCounter gated = new RestoredEventCounter(EventSnapshot.open(file), events -> {
+					awaitUninterruptibly(release);
+					return bbst.buildCounter("rbtree", events);
+				});
+				run("snapshot overlay n=" + n, gated, model, null);
+				release.countDown();
+				gated.awaitEngine();
+				run("snapshot handover n=" + n, gated, model, null);
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		System.out.println("ok snapshot round trip");
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		while (true) {
+			try {
+				latch.await();
+				return;
+			} catch (InterruptedException e) {
+				// keep waiting
+			}
+		}
+	}
+
+	private void loggedRecovery(String engine) throws IOException {
+		Path directory = Files.createTempDirectory("event-counter-check");
+		Path snapshotFile = directory.resolve("snapshot"), logFile = directory.resolve("log");
+		try {
+			TreeMap<Integer, Long> model = input(100);
+			EventCounter counter = bbst.buildCounter(engine, events(model));
+			LoggedEventCounter logged = LoggedEventCounter.recover(counter, 0, logFile, snapshotFile, 64, 500, 50);
+			run("logged " + engine, logged, model, null);
+			logged.close();
+
+			EventSnapshot snapshot = EventSnapshot.open(snapshotFile);
+			RestoredEventCounter restored = new RestoredEventCounter(snapshot, events -> bbst.buildCounter(engine, events));
+			LoggedEventCounter recovered = LoggedEventCounter.recover(restored, snapshot.sequence(), logFile,
+					snapshotFile, 64, 0, 50);
+			try {
+				compareEvents("recovered " + engine, EventSnapshot.eventsOf(recovered), model);
+			} finally {
+				recovered.close();
+			}
+		} finally {
+			Files.deleteIfExists(directory.resolve("snapshot.tmp"));
+			Files.deleteIfExists(directory.resolve("log.tmp"));
+			Files.deleteIfExists(snapshotFile);
+			Files.deleteIfExists(logFile);
+			Files.delete(directory);
+		}
+		System.out.println("ok logged recovery " + engine);
+	}
+
+	//
+	// Drives counter and model through the same random operations, and then
+	// compares their events. A sharded counter is rebalanced now and then.
+	//
+	private void run(String name, EventCounter counter, TreeMap<Integer, Long> model, ShardedEventCounter sharded)
+			throws IOException {
+		for (int i = 0; i < ops; i++) {
+			int id = id();
+			int other = id();
+			int lo = Math.min(id, other), hi = Math.max(id, other);
+			long delta = 1 + random.nextInt(random.nextBoolean() ? 10 : 1000);
+			long expected, actual;
+			String op;
+			switch (random.nextInt(8)) {
+			case 0:
+			case 1:
+				op = "increase(" + id + ", " + delta + ")";
+				expected = model.merge(id, delta, Long::sum);
+				actual = counter.increase(id, delta);
+				break;
+			case 2:
+				op = "reduce(" + id + ", " + delta + ")";
+				Long before = model.get(id);
+				expected = before == null || before <= delta ? 0 : before - delta;
+				if (expected == 0) {
+					model.remove(id);
+				} else {
+					model.put(id, expected);
+				}
+				actual = counter.reduce(id, delta);
+				break;
+			case 3:
+				op = "count(" + id + ")";
+				expected = model.getOrDefault(id, 0L);
+				actual = counter.count(id);
+				break;
+			case 4:
+				op = "rangeSum(" + lo + ", " + hi + ")";
+				expected = 0;
+				for (long count : model.subMap(lo, true, hi, true).values()) {
+					expected += count;
+				}
+				actual = counter.rangeSum(lo, hi);
+				break;
+			case 5:
+				op = "nextId(" + id + ")";
+				Integer next = model.higherKey(id);
+				expected = next == null ? EventCounter.NO_ID : next;
+				actual = counter.nextId(id);
+				break;
+			case 6:
+				op = "previousId(" + id + ")";
+				Integer previous = model.lowerKey(id);
+				expected = previous == null ? EventCounter.NO_ID : previous;
+				actual = counter.previousId(id);
+				break;
+			default:
+				// every engine rejects a delta that is not positive, and changes nothing
+				delta = -random.nextInt(3);
+				boolean increase = random.nextBoolean();
+				op = (increase ? "increase(" : "reduce(") + id + ", " + delta + ") rejected (1 = yes)";
+				expected = 1;
+				try {
+					if (increase) {
+						counter.increase(id, delta);
+					} else {
+						counter.reduce(id, delta);
+					}
+					actual = 0;
+				} catch (IllegalArgumentException e) {
+					actual = 1;
+				}
+				break;
+			}
+			if (expected != actual) {
+				throw new AssertionError(name + ": operation " + i + " " + op + " returned " + actual + ", expected "
+						+ expected);
+			}
+			if (sharded != null && i % 500 == 499) {
+				sharded.rebalance();
+			}
+		}
+		if (counter instanceof ConcurrentEventCounter) {
+			((ConcurrentEventCounter) counter).flush();
+		}
+		compareEvents(name, EventSnapshot.eventsOf(counter), model);
+	}
+
+	private static void compareEvents(String name, BulkLoader.SortedEvents events, TreeMap<Integer, Long> model)
+			throws IOException {
+		if (events.size() != model.size()) {
+			throw new AssertionError(name + ": " + events.size() + " events, expected " + model.size());
+		}
+		for (Map.Entry<Integer, Long> entry : model.entrySet()) {
+			if (!events.next() || events.id() != entry.getKey() || events.count() != entry.getValue()) {
+				throw new AssertionError(name + ": events differ at ID " + entry.getKey());
+			}
+		}
+		if (events.next()) {
+			throw new AssertionError(name + ": an extra event " + events.id());
+		}
+	}
+
+	// n random events; the ID span scales with n so that operations hit and miss
+	private TreeMap<Integer, Long> input(int n) {
+		span = Math.max(8, 2 * n);
+		TreeMap<Integer, Long> model = new TreeMap<>();
+		while (model.size() < n) {
+			// no extremes in the input, or the dense engine's range would be the whole int range
+			model.put(random.nextInt(2 * span + 1) - span, 1L + random.nextInt(1000));
+		}
+		return model;
+	}
+
+	private int id() {
+		switch (random.nextInt(50)) {
+		case 0:
+			return Integer.MIN_VALUE + random.nextInt(2);
+		case 1:
+			return Integer.MAX_VALUE - random.nextInt(2);
+		default:
+			return random.nextInt(2 * span + 1) - span;
+		}
+	}
+
+	private static BulkLoader.SortedEvents events(TreeMap<Integer, Long> model) {
+		int n = model.size();
+		int[] ids = new int[n];
+		long[] counts = new long[n];
+		int i = 0;
+		for (Map.Entry<Integer, Long> entry : model.entrySet()) {
+			ids[i] = entry.getKey();
+			counts[i++] = entry.getValue();
+		}
+		return new BulkLoader.ArrayEvents(ids, counts, n);
+	}
+
+	// hides the arrays of in-memory events, so the builders take their streaming path
+	private static final class StreamedEvents implements BulkLoader.SortedEvents {
+		private final BulkLoader.SortedEvents events;
+
+		StreamedEvents(BulkLoader.SortedEvents events) {
+			this.events = events;
+		}
+
+		public int size() {
+			return events.size();
+		}
+
+		public boolean next() throws IOException {
+			return events.next();
+		}
+
+		public int id() {
+			return events.id();
+		}
+
+		public long count() {
+			return events.count();
+		}
+	}
+}
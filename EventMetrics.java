@@ -0,0 +1,356 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+//
+// Process-wide instrumentation of the event counters:
+//   - how many times each RBTree operation ran, summed over every RBTree in
+//     the process (engines built from several trees count each tree's calls);
+//   - rotations and recolorings done by the red-black fix-ups;
+//   - the size of the served counter, and the height and black height of an
+//     RBTree, sampled by its owner (see sample() for which engines have them);
+//   - the hits, misses and evictions of an RBTree's hot node cache, sampled
+//     the same way, when the cache is on;
+//   - a latency histogram per bbst command, from one command in TIME_EVERY.
+//
+// Everything is behind ENABLED, a static final read once from the system
+// property eventcounter.metrics. When it is false the JIT folds every hook
+// away, so the hooks cost nothing. When it is true the counters are
+// LongAdders, striped across threads, and the histograms use one atomic
+// increment per sample. Reading the clock twice per command would cost a
+// command loop 10-20%, so only sampled commands are timed, and the periodic
+// dump is checked on those.
+//
+// The numbers are published as the JMX MBean EventCounter:type=Metrics and
+// can be printed with dump().
+//
+public final class EventMetrics {
+
+	public static final boolean ENABLED = Boolean.getBoolean("eventcounter.metrics");
+
+	// operations and bbst commands, in the order used by the arrays below
+	static final int INCREASE = 0, REDUCE = 1, COUNT = 2, INRANGE = 3, NEXT = 4, PREVIOUS = 5;
+	private static final String[] NAMES = { "increase", "reduce", "count", "inrange", "next", "previous" };
+
+	// a command loop times one command in this many (a power of two)
+	static final int TIME_EVERY = 64;
+
+	private static final LongAdder[] OPERATIONS = new LongAdder[NAMES.length];
+	private static final LatencyHistogram[] LATENCIES = new LatencyHistogram[NAMES.length];
+	private static final LongAdder ROTATIONS = new LongAdder();
+	private static final LongAdder RECOLORS = new LongAdder();
+	// the shape of the served counter as of the last sample; -1 until there is one, or if it has none
+	private static volatile int size = -1, height = -1, blackHeight = -1;
+	// the hot node cache as of the last sample; -1 if there is none
+	private static volatile long cacheHits = -1, cacheMisses = -1, cacheEvictions = -1;
+	private static long dumpEveryNanos; // 0 = no periodic dump
+	private static long nextDump;
+
+	static {
+		for (int i = 0; i < NAMES.length; i++) {
+			OPERATIONS[i] = new LongAdder();
+			LATENCIES[i] = new LatencyHistogram();
+		}
+		if (ENABLED) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new Bean(), MetricsMBean.class),
+						new ObjectName("EventCounter:type=Metrics"));
+			} catch (JMException e) {
+				System.err.println("Could not register the metrics MBean: " + e);
+			}
+		}
+	}
+
+	private EventMetrics() {
+	}
+
+	// hooks for the tree code; no-ops unless ENABLED
+
+	static void operation(int operation) {
+		if (ENABLED) {
+			OPERATIONS[operation].increment();
+		}
+	}
+
+	static void rotated() {
+		if (ENABLED) {
+			ROTATIONS.increment();
+		}
+	}
+
+	static void recolored(int nodes) {
+		if (ENABLED) {
+			RECOLORS.add(nodes);
+		}
+	}
+
+	static void command(int command, long nanos) {
+		if (ENABLED) {
+			LATENCIES[command].record(nanos);
+		}
+	}
+
+	// from now on, makes tick() dump to System.err every given number of seconds
+	static void dumpEvery(long seconds) {
+		dumpEveryNanos = seconds * 1_000_000_000L;
+		nextDump = System.nanoTime() + dumpEveryNanos;
+	}
+
+	//
+	// Called by a command loop after every timed command, on the thread that
+	// owns the counter: samples the tree and dumps once the interval has passed.
+	//
+	static void tick(EventCounter counter, long nowNanos) {
+		if (dumpEveryNanos > 0 && nowNanos - nextDump >= 0) {
+			nextDump = nowNanos + dumpEveryNanos;
+			sample(counter);
+			dump(System.err);
+		}
+	}
+
+	//
+	// Records the shape of the counter bbst serves, looking through a log or
+	// a restored snapshot to the engine behind it:
+	//   - rbtree: size, height and black height (height walks every node),
+	//     and the hot node cache's counters if it is on;
+	//   - array, bptree, dense, tiered, a restored snapshot not changed yet:
+	//     size only;
+	//   - concurrent, snapshot, sketch: nothing, as they do not keep
+	//     a size, or cannot be read from the owner thread alone.
+	// What an engine lacks is -1, and dump() prints it as n/a. Only the
+	// thread that owns the counter may call this.
+	//
+	static void sample(EventQueries counter) {
+		if (counter instanceof LoggedEventCounter) {
+			counter = ((LoggedEventCounter) counter).counter();
+		}
+		if (counter instanceof RestoredEventCounter) {
+			counter = ((RestoredEventCounter) counter).reader();
+		}
+		int size = -1, height = -1, blackHeight = -1;
+		long hits = -1, misses = -1, evictions = -1;
+		if (counter instanceof RBTree) {
+			RBTree tree = (RBTree) counter;
+			size = tree.size();
+			height = tree.height();
+			blackHeight = tree.blackHeight();
+			HotNodeCache cache = tree.hotNodeCache();
+			if (cache != null) {
+				hits = cache.hits();
+				misses = cache.misses();
+				evictions = cache.evictions();
+			}
+		} else if (counter instanceof ArrayRBTree) {
+			size = ((ArrayRBTree) counter).size();
+		} else if (counter instanceof BPlusTreeCounter) {
+			size = ((BPlusTreeCounter) counter).size();
+		} else if (counter instanceof DenseEventCounter) {
+			size = ((DenseEventCounter) counter).size();
+		} else if (counter instanceof TieredEventCounter) {
+			size = ((TieredEventCounter) counter).size();
+		} else if (counter instanceof EventSnapshot) {
+			size = ((EventSnapshot) counter).size();
+		}
+		EventMetrics.size = size;
+		EventMetrics.height = height;
+		EventMetrics.blackHeight = blackHeight;
+		cacheHits = hits;
+		cacheMisses = misses;
+		cacheEvictions = evictions;
+	}
+
+	//
+	// prints every counter, the hot node cache if the last sample found one,
+	// and, for each command that ran, its latency percentiles
+	//
+	public static void dump(PrintStream out) {
+		StringBuilder line = new StringBuilder("metrics:");
+		for (int i = 0; i < NAMES.length; i++) {
+			line.append(' ').append(NAMES[i]).append('=').append(OPERATIONS[i].sum());
+		}
+		line.append(" rotations=").append(ROTATIONS.sum()).append(" recolors=").append(RECOLORS.sum());
+		line.append(" size=").append(shape(size)).append(" height=").append(shape(height)).append(" blackHeight=")
+				.append(shape(blackHeight));
+		out.println(line);
+		long hits = cacheHits, misses = cacheMisses;
+		if (hits >= 0) {
+			long lookups = hits + misses;
+			out.printf("hot cache: hits=%d misses=%d evictions=%d hitRate=%.1f%%%n", hits, misses, cacheEvictions,
+					lookups > 0 ? 100.0 * hits / lookups : 0.0);
+		}
+		for (int i = 0; i < NAMES.length; i++) {
+			if (LATENCIES[i].count() > 0) {
+				out.println("latency " + NAMES[i] + ": " + LATENCIES[i]);
+			}
+		}
+	}
+
+	private static String shape(int value) {
+		return value >= 0 ? Integer.toString(value) : "n/a";
+	}
+
+	//
+	// Latencies in nanoseconds, in buckets with 4 significant bits (HDR
+	// style): values below 16 get a bucket each, and every power of two above
+	// that is split into 16 buckets. A value is off by at most 1/16 of
+	// itself, over the full long range, in under a thousand counters.
+	//
+	static final class LatencyHistogram {
+		private static final int SUB_BITS = 4, SUB_BUCKETS = 1 << SUB_BITS;
+		private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+
+		void record(long nanos) {
+			counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+		}
+
+		long count() {
+			long total = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				total += counts.get(i);
+			}
+			return total;
+		}
+
+		// the value below which a fraction p of the samples lie, to within a bucket
+		long percentile(double p) {
+			long total = count();
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= rank && seen > 0) {
+					return highestValue(i);
+				}
+			}
+			return 0;
+		}
+
+		public String toString() {
+			return "n=" + count() + " p50=" + percentile(0.50) + "ns p90=" + percentile(0.90) + "ns p99="
+					+ percentile(0.99) + "ns p99.9=" + percentile(0.999) + "ns max<=" + percentile(1.0) + "ns";
+		}
+
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int magnitude = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+			int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		// the largest value that falls into bucket i
+		private static long highestValue(int i) {
+			if (i < SUB_BUCKETS) {
+				return i;
+			}
+			int magnitude = i / SUB_BUCKETS + SUB_BITS - 1;
+			long lowest = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (magnitude - SUB_BITS);
+			return lowest + (1L << (magnitude - SUB_BITS)) - 1;
+		}
+	}
+
+	// the JMX view; latencies are one summary line per command
+	public interface MetricsMBean {
+		long getIncreases();
+
+		long getReduces();
+
+		long getCounts();
+
+		long getInRanges();
+
+		long getNexts();
+
+		long getPreviouses();
+
+		long getRotations();
+
+		long getRecolors();
+
+		int getSize();
+
+		int getHeight();
+
+		int getBlackHeight();
+
+		// -1 while no hot node cache has been sampled
+		long getCacheHits();
+
+		long getCacheMisses();
+
+		long getCacheEvictions();
+
+		String[] getLatencies();
+	}
+
+	static final class Bean implements MetricsMBean {
+		public long getIncreases() {
+			return OPERATIONS[INCREASE].sum();
+		}
+
+		public long getReduces() {
+			return OPERATIONS[REDUCE].sum();
+		}
+
+		public long getCounts() {
+			return OPERATIONS[COUNT].sum();
+		}
+
+		public long getInRanges() {
+			return OPERATIONS[INRANGE].sum();
+		}
+
+		public long getNexts() {
+			return OPERATIONS[NEXT].sum();
+		}
+
+		public long getPreviouses() {
+			return OPERATIONS[PREVIOUS].sum();
+		}
+
+		public long getRotations() {
+			return ROTATIONS.sum();
+		}
+
+		public long getRecolors() {
+			return RECOLORS.sum();
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getBlackHeight() {
+			return blackHeight;
+		}
+
+		public long getCacheHits() {
+			return cacheHits;
+		}
+
+		public long getCacheMisses() {
+			return cacheMisses;
+		}
+
+		public long getCacheEvictions() {
+			return cacheEvictions;
+		}
+
+		public String[] getLatencies() {
+			String[] lines = new String[NAMES.length];
+			for (int i = 0; i < NAMES.length; i++) {
+				lines[i] = NAMES[i] + ": " + LATENCIES[i];
+			}
+			return lines;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+//
+// The read-only half of EventCounter, for views that answer queries but
+// cannot be changed: a mapped EventSnapshot, or a version taken from a
+// SnapshotEventCounter. Like EventCounter, every method returns a primitive
+// and allocates nothing.
+//
+public interface EventQueries {
+
+	// returned by nextId/previousId when there is no such ID. It lies outside
+	// the int range, so it can never be confused with a real event ID.
+	long NO_ID = Long.MIN_VALUE;
+
+	// Returns the count of id, or 0 if it is not present.
+	long count(int id);
+
+	// Returns the total count of the IDs in [lo, hi], both inclusive.
+	long rangeSum(int lo, int hi);
+
+	// Returns the smallest present ID greater than id, or NO_ID.
+	long nextId(int id);
+
+	// Returns the largest present ID smaller than id, or NO_ID.
+	long previousId(int id);
+}
@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+//
+// A compact binary snapshot of the counter, served straight from a memory
+// mapping.
+//
+// Layout (big-endian):
+//   long  MAGIC
+//   int   VERSION
+//   int   n, the number of events
+//   long  sequence, the number of logged mutations folded into the snapshot
+//   int   ids[n], sorted ascending
+//   pad   to a multiple of 8 bytes
+//   long  prefix[n + 1], prefix[i] = total count of the first i events
+//
+// The sorted ids are an implicit search tree, and the prefix sums make every
+// count (prefix[i + 1] - prefix[i]) and every inRange (prefix[b] - prefix[a])
+// a pair of reads. Opening a snapshot only maps the file: nothing is parsed, and
+// the operating system faults pages in as the binary searches touch them.
+// A snapshot only answers queries; RestoredEventCounter adds the changes.
+//
+public class EventSnapshot implements EventQueries {
+
+	private static final long MAGIC = 0x4242535453534e50L; // "BBSTSSNP"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 24;
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+
+	// a mapped region is split into chunks so that files beyond 2 GB can be mapped
+	private static final int CHUNK_SHIFT = 30;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+	private final int size;
+	private final long sequence;
+	private final MappedByteBuffer[] idChunks;
+	private final MappedByteBuffer[] prefixChunks;
+
+	private EventSnapshot(int size, long sequence, MappedByteBuffer[] idChunks, MappedByteBuffer[] prefixChunks) {
+		this.size = size;
+		this.sequence = sequence;
+		this.idChunks = idChunks;
+		this.prefixChunks = prefixChunks;
+	}
+
+	//
+	// Writes the events to file. The snapshot is written to a temporary file
+	// next to it first and then moved into place, so a crash never leaves a
+	// half-written snapshot behind; the directory is synced after the move, so
+	// once this returns the new snapshot survives a crash and the log it
+	// covers may be truncated. sequence is the position in the mutation log up
+	// to which the events are complete (0 without a log).
+	//
+	public static void write(BulkLoader.SortedEvents events, Path file, long sequence) throws IOException {
+		int n = events.size();
+		long idsOffset = HEADER_SIZE;
+		long prefixOffset = prefixOffset(n);
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(MAGIC).putInt(VERSION).putInt(n).putLong(sequence).flip();
+			writeFully(channel, header, 0);
+
+			// ids and prefix sums go to two regions of the file in the same pass
+			ByteBuffer idBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+			ByteBuffer prefixBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+			long idPosition = idsOffset, prefixPosition = prefixOffset;
+			long total = 0;
+			prefixBuffer.putLong(total);
+			int written = 0;
+			while (events.next()) {
+				if (!idBuffer.hasRemaining()) {
+					idPosition += writeFully(channel, idBuffer.flip(), idPosition);
+					idBuffer.clear();
+				}
+				if (!prefixBuffer.hasRemaining()) {
+					prefixPosition += writeFully(channel, prefixBuffer.flip(), prefixPosition);
+					prefixBuffer.clear();
+				}
+				total = Math.addExact(total, events.count());
+				idBuffer.putInt(events.id());
+				prefixBuffer.putLong(total);
+				written++;
+			}
+			if (written != n) {
+				throw new IllegalStateException("Expected " + n + " events but got " + written);
+			}
+			writeFully(channel, idBuffer.flip(), idPosition);
+			writeFully(channel, prefixBuffer.flip(), prefixPosition);
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(file);
+	}
+
+	// fsyncs the directory holding file, which makes a rename into it durable
+	static void syncDirectory(Path file) throws IOException {
+		try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+			directory.force(true);
+		}
+	}
+
+	// maps a snapshot written by write()
+	public static EventSnapshot open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			int read;
+			do {
+				read = channel.read(header, header.position());
+			} while (read > 0 && header.hasRemaining());
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC) {
+				throw new IOException("Not an event snapshot: " + file);
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + ": " + file);
+			}
+			int n = header.getInt();
+			long sequence = header.getLong();
+			long prefixOffset = prefixOffset(n);
+			long expectedLength = prefixOffset + 8L * (n + 1);
+			if (channel.size() < expectedLength) {
+				throw new IOException("Truncated snapshot: " + file);
+			}
+			// the mappings stay valid after the channel is closed
+			return new EventSnapshot(n, sequence, map(channel, HEADER_SIZE, 4L * n),
+					map(channel, prefixOffset, 8L * (n + 1)));
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// the number of logged mutations already folded into this snapshot
+	public long sequence() {
+		return sequence;
+	}
+
+	public long count(int id) {
+		int i = lowerBound(id);
+		if (i < size && idAt(i) == id) {
+			return prefixAt(i + 1) - prefixAt(i);
+		}
+		return 0;
+	}
+
+	public long rangeSum(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		return prefixAt(upperBound(hi)) - prefixAt(lowerBound(lo));
+	}
+
+	public long nextId(int id) {
+		int i = upperBound(id);
+		return i < size ? idAt(i) : NO_ID;
+	}
+
+	public long previousId(int id) {
+		int i = lowerBound(id) - 1;
+		return i >= 0 ? idAt(i) : NO_ID;
+	}
+
+	// the events in ID order, e.g. to rebuild a mutable tree from the snapshot
+	public BulkLoader.SortedEvents events() {
+		return new BulkLoader.SortedEvents() {
+			private int position = -1;
+
+			public int size() {
+				return size;
+			}
+
+			public boolean next() {
+				if (position + 1 >= size) {
+					return false;
+				}
+				position++;
+				return true;
+			}
+
+			public int id() {
+				return idAt(position);
+			}
+
+			public long count() {
+				return prefixAt(position + 1) - prefixAt(position);
+			}
+
+			public long minId() {
+				return size > 0 ? idAt(0) : NO_ID;
+			}
+
+			public long maxId() {
+				return size > 0 ? idAt(size - 1) : NO_ID;
+			}
+		};
+	}
+
+	//
+	// The events of any counter or view in ID order. An RBTree, a B+-tree, a
+	// dense counter, a snapshot and an overlay walk their own storage; any other is walked
+	// with nextId, which costs O(n log n) and goes over the counter twice (once
+	// to size it).
+	//
+	public static BulkLoader.SortedEvents eventsOf(EventQueries source) {
+		EventQueries counter = source instanceof RestoredEventCounter ? ((RestoredEventCounter) source).reader() : source;
+		if (counter instanceof RBTree) {
+			return ((RBTree) counter).events();
+		}
+		if (counter instanceof EventSnapshot) {
+			return ((EventSnapshot) counter).events();
+		}
+		if (counter instanceof SnapshotOverlay) {
+			return ((SnapshotOverlay) counter).events();
+		}
+		if (counter instanceof BPlusTreeCounter) {
+			return ((BPlusTreeCounter) counter).events();
+		}
+		if (counter instanceof DenseEventCounter) {
+			return ((DenseEventCounter) counter).events();
+		}
+		if (counter instanceof ShardedEventCounter) {
+			return ((ShardedEventCounter) counter).events();
+		}
+		if (counter instanceof TieredEventCounter) {
+			return ((TieredEventCounter) counter).events();
+		}
+		if (counter instanceof SketchEventCounter) {
+			throw new IllegalArgumentException("A sketch only has estimates, not events to save");
+		}
+		int n = 0;
+		for (long id = firstId(counter); id != NO_ID; id = counter.nextId((int) id)) {
+			n++;
+		}
+		final int size = n;
+		return new BulkLoader.SortedEvents() {
+			private long id = NO_ID;
+			private boolean started = false;
+
+			public int size() {
+				return size;
+			}
+
+			public boolean next() {
+				if (!started) {
+					started = true;
+					id = firstId(counter);
+				} else if (id != NO_ID) {
+					id = counter.nextId((int) id);
+				}
+				return id != NO_ID;
+			}
+
+			public int id() {
+				return (int) id;
+			}
+
+			public long count() {
+				return counter.count((int) id);
+			}
+		};
+	}
+
+	private static long firstId(EventQueries counter) {
+		if (counter.count(Integer.MIN_VALUE) > 0) {
+			return Integer.MIN_VALUE;
+		}
+		return counter.nextId(Integer.MIN_VALUE);
+	}
+
+	// index of the first id >= id
+	private int lowerBound(int id) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (idAt(mid) < id) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// index of the first id > id
+	private int upperBound(int id) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (idAt(mid) <= id) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int idAt(int i) {
+		long offset = 4L * i;
+		return idChunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+	}
+
+	private long prefixAt(int i) {
+		long offset = 8L * i;
+		return prefixChunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+	}
+
+	private static long prefixOffset(int n) {
+		return (HEADER_SIZE + 4L * n + 7) & ~7L;
+	}
+
+	private static MappedByteBuffer[] map(FileChannel channel, long offset, long length) throws IOException {
+		int chunks = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+		MappedByteBuffer[] mapped = new MappedByteBuffer[Math.max(chunks, 1)];
+		for (int c = 0; c < mapped.length; c++) {
+			long start = (long) c << CHUNK_SHIFT;
+			long chunkLength = Math.min(length - start, 1L << CHUNK_SHIFT);
+			mapped[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.max(chunkLength, 0));
+		}
+		return mapped;
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+}
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+//
+// A bounded map from event ID straight to its RBTree node, so that the hot
+// IDs of a skewed workload skip the root-to-leaf descent. Open addressing
+// with linear probing over primitive int keys, in a table kept at most half
+// full.
+//
+// Once the cache is full a CLOCK hand picks the entry to evict. Every entry
+// has a small use counter that each hit bumps and each pass of the hand
+// takes down by one; the hand evicts the first entry it finds at zero. So
+// an ID that keeps getting hit survives several sweeps (GCLOCK, a CLOCK
+// that leans towards LFU).
+//
+// The tree owns the cache and drops an entry whenever the node behind it
+// stops holding that ID.
+//
+public final class HotNodeCache {
+
+	private static final int MAX_USES = 3;
+
+	private final int capacity;
+	private final int mask;
+	private final int[] ids;
+	private final RBTree.EventNode[] nodes; // null marks an empty slot
+	private final byte[] uses;
+	private int size;
+	private int hand; // the CLOCK hand, a slot index
+	private long hits, misses, evictions;
+
+	HotNodeCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("A hot node cache needs room for at least one entry: " + capacity);
+		}
+		int length = 2;
+		while (length < 2L * capacity) {
+			length <<= 1;
+		}
+		this.capacity = capacity;
+		this.mask = length - 1;
+		this.ids = new int[length];
+		this.nodes = new RBTree.EventNode[length];
+		this.uses = new byte[length];
+	}
+
+	// the node holding id, or null if id is not cached
+	RBTree.EventNode get(int id) {
+		for (int i = slot(id);; i = (i + 1) & mask) {
+			RBTree.EventNode node = nodes[i];
+			if (node == null) {
+				misses++;
+				return null;
+			}
+			if (ids[i] == id) {
+				if (uses[i] < MAX_USES) {
+					uses[i]++;
+				}
+				hits++;
+				return node;
+			}
+		}
+	}
+
+	void put(int id, RBTree.EventNode node) {
+		int i = slot(id);
+		while (nodes[i] != null) {
+			if (ids[i] == id) {
+				nodes[i] = node;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (size == capacity) {
+			evict();
+			// the eviction may have shifted entries into the free run
+			i = slot(id);
+			while (nodes[i] != null) {
+				i = (i + 1) & mask;
+			}
+		}
+		ids[i] = id;
+		nodes[i] = node;
+		uses[i] = 0;
+		size++;
+	}
+
+	void remove(int id) {
+		for (int i = slot(id);; i = (i + 1) & mask) {
+			if (nodes[i] == null) {
+				return;
+			}
+			if (ids[i] == id) {
+				delete(i);
+				return;
+			}
+		}
+	}
+
+	void clear() {
+		Arrays.fill(nodes, null);
+		size = 0;
+	}
+
+	// entries found, entries not found, entries evicted to make room
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	public long evictions() {
+		return evictions;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	private void evict() {
+		while (true) {
+			if (nodes[hand] != null) {
+				if (uses[hand] == 0) {
+					delete(hand);
+					evictions++;
+					return;
+				}
+				uses[hand]--;
+			}
+			hand = (hand + 1) & mask;
+		}
+	}
+
+	//
+	// Empties slot i and shifts later entries of the same probe run back into
+	// the gap, so lookups never need tombstones.
+	//
+	private void delete(int i) {
+		nodes[i] = null;
+		size--;
+		for (int j = (i + 1) & mask; nodes[j] != null; j = (j + 1) & mask) {
+			int home = slot(ids[j]);
+			// the entry at j may move to i unless its home lies cyclically in (i, j]
+			boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!stays) {
+				ids[i] = ids[j];
+				nodes[i] = nodes[j];
+				uses[i] = uses[j];
+				nodes[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	private int slot(int id) {
+		return IdHash.slot(id, mask);
+	}
+}
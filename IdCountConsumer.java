@@ -0,0 +1,9 @@
+//
+// Receives (id, count) pairs as primitives, e.g. from RBTree.rangeScan, so a
+// scan over millions of events boxes nothing.
+//
+@FunctionalInterface
+public interface IdCountConsumer {
+
+	void accept(int id, long count);
+}
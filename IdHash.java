@@ -0,0 +1,18 @@
+//
+// The home slot of an event ID in a power-of-two open-addressed table, shared
+// by the tables keyed by ID. Fibonacci hashing: of the ID times 2^32 / phi it
+// keeps the top log2(table size) bits, which depend on all 32 ID bits, at any
+// table size. The low bits of the product only see the low bits of the ID.
+//
+public final class IdHash {
+
+	private IdHash() {
+	}
+
+	// the slot of id in a table of mask + 1 entries
+	static int slot(int id, int mask) {
+		// the shift is 32 - log2(mask + 1); for a one-slot table it is 32, which
+		// Java takes as 0, and the mask clears everything anyway
+		return (id * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mask) & mask;
+	}
+}
@@ -0,0 +1,207 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+//
+// Makes a counter durable: every increase and reduce is appended to a
+// MutationLog before it is applied, and checkpoint() folds the log into a
+// binary EventSnapshot.
+//
+// Sequence numbers tie the two together. Each log record has one, and a
+// snapshot stores the sequence number of the first record it does not contain.
+// Recovery opens the snapshot and replays only the records from there on, so
+// a crash between writing a snapshot and truncating the log replays nothing
+// twice.
+//
+// Mutations are serialized so that the order in the log is the order in which
+// they were applied; reduce clamps at zero, so the order matters.
+//
+// Compaction runs beside ingestion. Under the mutation lock it only notes
+// the sequence number to compact up to, and for a SnapshotEventCounter takes
+// its current version in O(1). A background thread then writes the new
+// snapshot: the version, or for any other engine the last snapshot with the
+// log records up to that sequence replayed into a SnapshotOverlay, so the
+// engine is neither copied nor read. Then it drops just the log records the
+// new snapshot covers; the records logged meanwhile stay. At most one
+// compaction runs at a time.
+//
+// The snapshot file must exist once mutations arrive, as compaction builds
+// on it; recover() writes it if it is missing.
+//
+public class LoggedEventCounter implements EventCounter, Closeable {
+
+	private final EventCounter counter;
+	private final MutationLog log;
+	private final Path snapshotFile;
+	private final long compactEveryOps;
+	private boolean compacting; // a background compaction is running; guarded by this
+	private IOException compactionFailure; // reported to the next mutation; guarded by this
+
+	//
+	// Wraps a counter that already reflects everything in the snapshot and the
+	// log; the snapshot must exist. Once the log holds compactEveryOps records
+	// it is compacted into the snapshot (0 = only on checkpoint()).
+	//
+	public LoggedEventCounter(EventCounter counter, MutationLog log, Path snapshotFile, long compactEveryOps) {
+		this.counter = counter;
+		this.log = log;
+		this.snapshotFile = snapshotFile;
+		this.compactEveryOps = compactEveryOps;
+	}
+
+	//
+	// Recovers a counter: applies the records of the log at logFile that the
+	// snapshot (if any) does not contain yet, then opens the log for appending.
+	// counter must hold the state as of snapshotSequence. Without a snapshot,
+	// checkpoints right away, so that compaction has one to build on.
+	//
+	public static LoggedEventCounter recover(EventCounter counter, long snapshotSequence, Path logFile, Path snapshotFile,
+			int syncEveryOps, long syncIntervalMicros, long compactEveryOps) throws IOException {
+		MutationLog.replay(logFile, snapshotSequence, counter);
+		MutationLog log = new MutationLog(logFile, snapshotSequence, syncEveryOps, syncIntervalMicros);
+		LoggedEventCounter logged = new LoggedEventCounter(counter, log, snapshotFile, compactEveryOps);
+		if (!Files.exists(snapshotFile)) {
+			logged.checkpoint();
+		}
+		return logged;
+	}
+
+	public synchronized long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		checkCompaction();
+		append(MutationLog.INCREASE, id, delta);
+		long result = counter.increase(id, delta);
+		compactIfDue();
+		return result;
+	}
+
+	public synchronized long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		checkCompaction();
+		append(MutationLog.REDUCE, id, delta);
+		long result = counter.reduce(id, delta);
+		compactIfDue();
+		return result;
+	}
+
+	public long count(int id) {
+		return counter.count(id);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		return counter.rangeSum(lo, hi);
+	}
+
+	public long nextId(int id) {
+		return counter.nextId(id);
+	}
+
+	public long previousId(int id) {
+		return counter.previousId(id);
+	}
+
+	// the number of logged mutations that are not in the snapshot yet
+	public long pendingMutations() {
+		return log.size();
+	}
+
+	// the counter the mutations are applied to
+	EventCounter counter() {
+		return counter;
+	}
+
+	//
+	// Writes a snapshot of the current state and empties the log. Waits for a
+	// background compaction to finish, then runs in the calling thread and
+	// blocks mutations while the snapshot is written.
+	//
+	public synchronized void checkpoint() throws IOException {
+		awaitCompaction();
+		log.sync();
+		EventSnapshot.write(EventSnapshot.eventsOf(counter), snapshotFile, log.nextSequence());
+		log.truncate();
+	}
+
+	// waits for a background compaction, then closes the log
+	public void close() throws IOException {
+		synchronized (this) {
+			awaitCompaction();
+		}
+		log.close();
+	}
+
+	private void append(byte op, int id, long delta) {
+		try {
+			log.append(op, id, delta);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// starts a background compaction once the log is long enough; called under the lock
+	private void compactIfDue() {
+		if (compactEveryOps > 0 && !compacting && log.size() >= compactEveryOps) {
+			long sequence = log.nextSequence();
+			// null: replay the log into the last snapshot instead
+			BulkLoader.SortedEvents version = counter instanceof SnapshotEventCounter
+					? ((SnapshotEventCounter) counter).snapshot().events()
+					: null;
+			compacting = true;
+			Thread compactor = new Thread(() -> compact(version, sequence), "snapshot-compactor");
+			compactor.start();
+		}
+	}
+
+	// runs on the compactor thread
+	private void compact(BulkLoader.SortedEvents version, long sequence) {
+		IOException failure = null;
+		try {
+			if (version != null) {
+				EventSnapshot.write(version, snapshotFile, sequence);
+			} else {
+				EventSnapshot last = EventSnapshot.open(snapshotFile);
+				SnapshotOverlay overlay = new SnapshotOverlay(last);
+				log.replay(last.sequence(), sequence, overlay);
+				EventSnapshot.write(overlay.events(), snapshotFile, sequence);
+			}
+			log.truncate(sequence);
+		} catch (IOException | RuntimeException e) {
+			failure = e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+		synchronized (this) {
+			compactionFailure = failure;
+			compacting = false;
+			notifyAll();
+		}
+	}
+
+	// rethrows, once, a failure of the last background compaction
+	private void checkCompaction() {
+		if (compactionFailure != null) {
+			IOException failure = compactionFailure;
+			compactionFailure = null;
+			throw new UncheckedIOException(failure);
+		}
+	}
+
+	private void awaitCompaction() throws IOException {
+		boolean interrupted = false;
+		while (compacting) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (compactionFailure != null) {
+			IOException failure = compactionFailure;
+			compactionFailure = null;
+			throw failure;
+		}
+	}
+}
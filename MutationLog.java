@@ -0,0 +1,351 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+//
+// An append-only binary write-ahead log of increase/reduce calls.
+//
+// Layout (big-endian): a header of MAGIC and the sequence number of the first
+// record, then fixed-size records of
+//   byte op, int id, long delta, int CRC32C of the previous 13 bytes.
+// A torn record at the end (from a crash in the middle of a write) fails its
+// checksum; it is ignored on replay and cut off when the log is reopened.
+//
+// Appends go to an in-memory buffer. Group commit writes and fsyncs the buffer
+// once syncEveryOps records are pending or syncIntervalMicros have passed since
+// the last sync, whichever comes first, so a sync is shared by many writes.
+// The interval is also enforced by a background flusher, so the last few
+// records never wait for the next append. The flusher is only woken when
+// records are pending, so an idle log costs nothing.
+//
+public class MutationLog implements Closeable {
+
+	static final byte INCREASE = 1;
+	static final byte REDUCE = 2;
+
+	private static final long MAGIC = 0x4242535457414c31L; // "BBSTWAL1"
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 1 + 4 + 8 + 4;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path file;
+	private FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final CRC32C crc = new CRC32C();
+	private final int syncEveryOps;
+	private final long syncIntervalNanos;
+	private final ScheduledThreadPoolExecutor flusher;
+	private boolean flushScheduled; // the flusher will look at the pending records
+
+	private long baseSequence; // sequence number of the first record in the file
+	private long nextSequence; // sequence number the next record will get
+	private int pendingOps; // appended but not yet synced
+	private long lastSyncNanos = System.nanoTime();
+	private IOException flushFailure;
+
+	//
+	// Opens the log, creating it if needed. startSequence is the first sequence
+	// number that is not already in a snapshot. An existing log keeps its own
+	// numbering and loses a torn tail; if all of it is older than
+	// startSequence, it is replaced by a new log starting there.
+	//
+	public MutationLog(Path file, long startSequence, int syncEveryOps, long syncIntervalMicros) throws IOException {
+		this.file = file;
+		this.syncEveryOps = Math.max(syncEveryOps, 1);
+		this.syncIntervalNanos = TimeUnit.MICROSECONDS.toNanos(syncIntervalMicros);
+		if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			baseSequence = readHeader(channel, file);
+			long validRecords = countValidRecords(channel);
+			channel.truncate(HEADER_SIZE + validRecords * RECORD_SIZE);
+			channel.position(HEADER_SIZE + validRecords * RECORD_SIZE);
+			nextSequence = baseSequence + validRecords;
+			if (nextSequence < startSequence) {
+				nextSequence = startSequence;
+				truncate();
+			}
+		} else {
+			channel = createLog(file, startSequence);
+			baseSequence = startSequence;
+			nextSequence = startSequence;
+		}
+		if (syncIntervalMicros > 0) {
+			flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+				Thread thread = new Thread(runnable, "mutation-log-flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // close() syncs anyway
+		} else {
+			flusher = null;
+		}
+	}
+
+	// the sequence number the next appended record will get
+	public synchronized long nextSequence() {
+		return nextSequence;
+	}
+
+	// the number of records in the log, i.e. what a replay would have to apply
+	public synchronized long size() {
+		return nextSequence - baseSequence;
+	}
+
+	public synchronized void append(byte op, int id, long delta) throws IOException {
+		if (flushFailure != null) {
+			throw flushFailure;
+		}
+		if (buffer.remaining() < RECORD_SIZE) {
+			writeBuffer();
+		}
+		int start = buffer.position();
+		buffer.put(op).putInt(id).putLong(delta);
+		buffer.putInt(checksum(buffer, start));
+		nextSequence++;
+		pendingOps++;
+		if (pendingOps >= syncEveryOps || System.nanoTime() - lastSyncNanos >= syncIntervalNanos) {
+			sync();
+		} else if (flusher != null && !flushScheduled) {
+			flushScheduled = true;
+			flusher.schedule(this::flushIfDue, syncIntervalNanos - (System.nanoTime() - lastSyncNanos),
+					TimeUnit.NANOSECONDS);
+		}
+	}
+
+	// writes and fsyncs everything appended so far
+	public synchronized void sync() throws IOException {
+		writeBuffer();
+		if (pendingOps > 0) {
+			channel.force(false);
+			pendingOps = 0;
+		}
+		lastSyncNanos = System.nanoTime();
+	}
+
+	//
+	// Starts a fresh, empty log whose first record will be nextSequence().
+	// Call it once a snapshot covering every record so far is safely on disk.
+	//
+	public synchronized void truncate() throws IOException {
+		truncate(nextSequence);
+	}
+
+	//
+	// Drops the records before sequence, keeping the ones from sequence on.
+	// Call it once a snapshot covering every record before sequence is safely
+	// on disk. The kept records are copied into a fresh log, which replaces
+	// the old one atomically, and the directory is synced before the old
+	// records are given up. Appends wait for the copy, which only holds the
+	// records logged since the snapshot was taken.
+	//
+	public synchronized void truncate(long sequence) throws IOException {
+		sync();
+		if (sequence < baseSequence || sequence > nextSequence) {
+			throw new IllegalArgumentException(
+					"Sequence " + sequence + " is outside the log: " + baseSequence + ".." + nextSequence);
+		}
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		FileChannel fresh = createLog(temp, sequence);
+		long position = HEADER_SIZE + (sequence - baseSequence) * RECORD_SIZE;
+		long end = HEADER_SIZE + (nextSequence - baseSequence) * RECORD_SIZE;
+		while (position < end) {
+			position += channel.transferTo(position, end - position, fresh);
+		}
+		fresh.force(false);
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		EventSnapshot.syncDirectory(file);
+		channel.close();
+		channel = fresh;
+		baseSequence = sequence;
+	}
+
+	public void close() throws IOException {
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+		synchronized (this) {
+			sync();
+			channel.close();
+		}
+	}
+
+	//
+	// Applies every valid record with a sequence number >= fromSequence to the
+	// counter and returns how many were applied. Records that the counter
+	// rejected the first time (e.g. on overflow) are rejected again.
+	//
+	public static long replay(Path file, long fromSequence, EventCounter counter) throws IOException {
+		return replay(file, fromSequence, Long.MAX_VALUE, counter);
+	}
+
+	//
+	// Applies the records from fromSequence up to, not including, toSequence,
+	// which must have been appended. Reads the file without holding the lock,
+	// so appends go on meanwhile; the caller makes sure that nothing
+	// truncates the log until it returns.
+	//
+	public long replay(long fromSequence, long toSequence, EventCounter counter) throws IOException {
+		synchronized (this) {
+			writeBuffer(); // the records before toSequence must be in the file
+		}
+		return replay(file, fromSequence, toSequence, counter);
+	}
+
+	private static long replay(Path file, long fromSequence, long toSequence, EventCounter counter)
+			throws IOException {
+		if (!Files.exists(file) || Files.size(file) < HEADER_SIZE) {
+			return 0;
+		}
+		long applied = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long sequence = readHeader(channel, file);
+			ByteBuffer records = ByteBuffer.allocateDirect(BUFFER_SIZE - BUFFER_SIZE % RECORD_SIZE);
+			CRC32C crc = new CRC32C();
+			long position = HEADER_SIZE;
+			while (true) {
+				records.clear();
+				int read = readFully(channel, records, position);
+				records.flip();
+				while (records.remaining() >= RECORD_SIZE) {
+					int start = records.position();
+					byte op = records.get();
+					int id = records.getInt();
+					long delta = records.getLong();
+					if (records.getInt() != checksum(crc, records, start)) {
+						return applied; // torn tail
+					}
+					if (sequence >= toSequence) {
+						return applied;
+					}
+					if (sequence++ >= fromSequence) {
+						apply(counter, op, id, delta);
+						applied++;
+					}
+				}
+				if (read < records.capacity()) {
+					return applied;
+				}
+				position += read;
+			}
+		}
+	}
+
+	private static void apply(EventCounter counter, byte op, int id, long delta) {
+		try {
+			if (op == INCREASE) {
+				counter.increase(id, delta);
+			} else if (op == REDUCE) {
+				counter.reduce(id, delta);
+			}
+		} catch (ArithmeticException e) {
+			// the original call failed the same way and changed nothing
+		}
+	}
+
+	// runs on the flusher once records are pending; looks again later if a sync came in between
+	private synchronized void flushIfDue() {
+		flushScheduled = false;
+		if (pendingOps == 0) {
+			return;
+		}
+		long wait = syncIntervalNanos - (System.nanoTime() - lastSyncNanos);
+		if (wait > 0) {
+			flushScheduled = true;
+			flusher.schedule(this::flushIfDue, wait, TimeUnit.NANOSECONDS);
+			return;
+		}
+		try {
+			sync();
+		} catch (IOException e) {
+			// reported to the next append
+			flushFailure = e;
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private int checksum(ByteBuffer records, int start) {
+		return checksum(crc, records, start);
+	}
+
+	// CRC32C of the 13 record bytes starting at start
+	private static int checksum(CRC32C crc, ByteBuffer records, int start) {
+		crc.reset();
+		ByteBuffer view = records.duplicate();
+		view.position(start).limit(start + RECORD_SIZE - 4);
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	private long countValidRecords(FileChannel channel) throws IOException {
+		long records = 0;
+		ByteBuffer chunk = ByteBuffer.allocateDirect(BUFFER_SIZE - BUFFER_SIZE % RECORD_SIZE);
+		long position = HEADER_SIZE;
+		while (true) {
+			chunk.clear();
+			int read = readFully(channel, chunk, position);
+			chunk.flip();
+			while (chunk.remaining() >= RECORD_SIZE) {
+				int start = chunk.position();
+				chunk.position(start + RECORD_SIZE - 4);
+				if (chunk.getInt() != checksum(chunk, start)) {
+					return records;
+				}
+				records++;
+			}
+			if (read < chunk.capacity()) {
+				return records;
+			}
+			position += read;
+		}
+	}
+
+	private static FileChannel createLog(Path file, long startSequence) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putLong(MAGIC).putLong(startSequence).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		channel.force(true);
+		return channel;
+	}
+
+	// returns the base sequence number
+	private static long readHeader(FileChannel channel, Path file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC) {
+			throw new IOException("Not a mutation log: " + file);
+		}
+		return header.getLong();
+	}
+
+	private static int readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+		int total = 0;
+		while (target.hasRemaining()) {
+			int read = channel.read(target, position + total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+}
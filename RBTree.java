@@ -1,73 +1,153 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 //The program implements an event counter using a Red-Black tree.
-public class RBTree {
+public class RBTree implements EventCounter {
 
 	EventNode root;
+	private int size; // the number of events
+	private HotNodeCache hotNodes; // optional, see enableHotNodeCache
     // the below boolean variables are used in the inner class EventNode to represent the node color
 	private static final boolean RED = true;
 	private static final boolean BLACK = false;
 
-	private int tMin = -1;
-	private int tMax = -1;
-
 	public class EventNode {
 		int id; // unique ID for each event
-		int count; // count is the number of active events for each unique ID. It is always greater than 0.
-		int descendantsEventCount; // this the summation of all the event's counts in all the nodes of the subtree rooted at this node
+		long count; // count is the number of active events for each unique ID. It is always greater than 0.
+		long descendantsEventCount; // this the summation of all the event's counts in all the nodes of the subtree rooted at this node
+		long maxEventCount; // the largest count in the subtree rooted at this node, for top-k queries
 		EventNode parent, left, right;
 		boolean isRed; // I have taken a boolean approach to store the node color
 
-		EventNode(int id, int count) {
+		EventNode(int id, long count) {
 			this.id = id;
 			this.count = count;
 			this.descendantsEventCount = count;
+			this.maxEventCount = count;
 			this.isRed = RED; // a node is asigned Red color whenever it is first created
 		}
 	}
 
 	//
 	//Increase the count of the event theID by m. If
-	//theID is not present, insertBST it. Print the count
-	//of theID after the addition.
+	//theID is not present, insert it. Return the count
+	//of theID after the addition. Throws ArithmeticException,
+	//leaving the tree untouched, if the total would overflow.
 	//
-	void increase(int eventID, int m) {
-		EventNode event = findEventNode(eventID);
-		if (event != null) {
-			event.count = event.count + m;
-			event.descendantsEventCount = event.descendantsEventCount + m;
-			EventNode ancestor = event.parent;
+	public long increase(int eventID, long m) {
+		EventCounter.checkDelta(m);
+		EventMetrics.operation(EventMetrics.INCREASE);
+		// every count is positive, so no aggregate can exceed the root's: checking
+		// the root before touching anything keeps all of them exact
+		if (root != null) {
+			Math.addExact(root.descendantsEventCount, m);
+		}
+		if (hotNodes == null) {
+			return upsert(eventID, m).count;
+		}
+		EventNode node = hotNodes.get(eventID);
+		if (node != null) {
+			return addToEvent(node, m);
+		}
+		node = upsert(eventID, m);
+		hotNodes.put(eventID, node);
+		return node.count;
+	}
 
-			while (ancestor != null) {
-				ancestor.descendantsEventCount = ancestor.descendantsEventCount + m;
-				ancestor = ancestor.parent;
+	//
+	// Caches the nodes of up to capacity recently and frequently used IDs, so
+	// that count, increase and reduce find them without a descent. Meant for
+	// skewed workloads; see HotNodeCache.
+	//
+	public void enableHotNodeCache(int capacity) {
+		hotNodes = new HotNodeCache(capacity);
+	}
+
+	// the hot node cache with its hit and miss counts, or null if it is off
+	public HotNodeCache hotNodeCache() {
+		return hotNodes;
+	}
+
+	// the node of eventID through the hot node cache if there is one, or null if eventID is not present
+	private EventNode lookup(int eventID) {
+		if (hotNodes == null) {
+			return findEventNode(eventID);
+		}
+		EventNode node = hotNodes.get(eventID);
+		if (node == null) {
+			node = findEventNode(eventID);
+			if (node != null) {
+				hotNodes.put(eventID, node);
 			}
+		}
+		return node;
+	}
+
+	// adds m to a present event and to every aggregate above it, climbing the parent links
+	private long addToEvent(EventNode node, long m) {
+		node.count += m;
+		for (EventNode ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+			ancestor.descendantsEventCount += m;
+		}
+		raiseMaxEventCount(node);
+		return node.count;
+	}
+
+	//
+	// Finds or inserts eventID in a single top-down pass. m is added to the
+	// aggregate of every node on the way down, since it lands below all of them
+	// either way; a miss hangs the new node off the last node visited.
+	// Returns the event's node.
+	//
+	private EventNode upsert(int eventID, long m) {
+		EventNode parent = null, node = root;
+		while (node != null) {
+			node.descendantsEventCount += m;
+			if (eventID < node.id) {
+				parent = node;
+				node = node.left;
+			} else if (eventID > node.id) {
+				parent = node;
+				node = node.right;
+			} else {
+				node.count += m;
+				raiseMaxEventCount(node);
+				return node;
+			}
+		}
+		EventNode newNode = new EventNode(eventID, m);
+		newNode.parent = parent;
+		size++;
+		if (parent == null) {
+			root = newNode;
+		} else if (eventID < parent.id) {
+			parent.left = newNode;
 		} else {
-			insertBST(eventID, m);
-			event = findEventNode(eventID);
+			parent.right = newNode;
 		}
-		System.out.println(event.count);
+		raiseMaxEventCount(newNode);
+		insertRBTCase1(newNode);
+		return newNode;
 	}
 
 	//
 	//Decrease the count of theID by m. If theID’s
 	//count becomes less than or equal to 0, remove
-	//theID from the counter. Print the count of
+	//theID from the counter. Return the count of
 	//theID after the deletion, or 0 if theID is
 	//removed or not present.
 	//
-	void reduce(int eventID, int m) {
-		EventNode event = findEventNode(eventID);
+	public long reduce(int eventID, long m) {
+		EventCounter.checkDelta(m);
+		EventMetrics.operation(EventMetrics.REDUCE);
+		EventNode event = lookup(eventID);
 		if (event != null) {
 			if (event.count <= m) {
-				int deletedEventCount = event.count;
-				deleteBST(eventID);
-				EventNode ancestor = event.parent;
-
-				while (ancestor != null) {
-					ancestor.descendantsEventCount = ancestor.descendantsEventCount - deletedEventCount;
-					ancestor = ancestor.parent;
-				}
-				// Printing zero beacause count became less than or equal to zero.
-				System.out.println(0);
+				deleteEventNode(event);
+				// Returning zero beacause count became less than or equal to zero.
+				return 0;
 			} else {
 				event.count = event.count - m;
 				event.descendantsEventCount = event.descendantsEventCount - m;
@@ -77,221 +157,351 @@ public class RBTree {
 					ancestor.descendantsEventCount = ancestor.descendantsEventCount - m;
 					ancestor = ancestor.parent;
 				}
-				System.out.println(event.count);
+				lowerMaxEventCount(event);
+				return event.count;
 			}
 		} else {
-			// theID is not present. Print zero.
-			System.out.println(0);
+			// theID is not present. Return zero.
+			return 0;
 		}
 	}
 
 	//
-	//Print the count of theID. If not present, print
+	//Return the count of theID. If not present, return
 	//0.
 	//
-	void count(int eventID) {
-		EventNode event = findEventNode(eventID);
+	public long count(int eventID) {
+		EventMetrics.operation(EventMetrics.COUNT);
+		EventNode event = lookup(eventID);
 		if (event != null) {
-			System.out.println(event.count);
+			return event.count;
 		} else {
-			System.out.println(0);
+			return 0;
 		}
 	}
 
-	EventNode next(int eventID, boolean printWorthy) {
-		EventNode event = findEventNode(eventID);
-		if (event != null) {
-			EventNode eventSuccessor = nodeSuccessor(event);
-			if (eventSuccessor != null) {
-				if (printWorthy) {
-					System.out.println(eventSuccessor.id + " " + eventSuccessor.count);
-				}
-				return eventSuccessor;
+	//
+	// Increases every ids[i] by deltas[i], as increase would one pair at a
+	// time, for the first n pairs. The batch is sorted and coalesced first, so
+	// repeated IDs cost one update. It is then merged into the tree in one
+	// recursive in-order pass: each node splits the sorted slice that falls
+	// in its subtree between its children, so the batch shares every common
+	// prefix of the paths, and each touched node's aggregates are updated
+	// once for the whole batch. The IDs that are not present yet are inserted
+	// afterwards, in ID order; into an empty tree the batch is built directly.
+	// Throws ArithmeticException, leaving the tree untouched, if the total
+	// would overflow.
+	//
+	public void applyBatch(int[] ids, long[] deltas, int n) {
+		int[] order = sortedOrder(ids, n);
+		int[] batchIds = new int[n];
+		long[] batchDeltas = new long[n];
+		long batchTotal = 0;
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			int index = order[i];
+			long delta = deltas[index];
+			EventCounter.checkDelta(delta);
+			batchTotal = Math.addExact(batchTotal, delta);
+			if (distinct > 0 && batchIds[distinct - 1] == ids[index]) {
+				batchDeltas[distinct - 1] += delta;
 			} else {
-				EventNode ancestor = event.parent;
-				boolean isFound = false;
-				while (ancestor != null) {
-					if (ancestor.id > eventID) {
-						if (printWorthy) {
-							System.out.println(ancestor.id + " " + ancestor.count);
-						}
-						isFound = true;
-						break;
-					}
-					ancestor = ancestor.parent;
-				}
-				if (!isFound) {
-					if (printWorthy) {
-						System.out.println("0 0");
-					}
-					return null;
-				} else {
-					return ancestor;
-				}
+				batchIds[distinct] = ids[index];
+				batchDeltas[distinct] = delta;
+				distinct++;
 			}
-		} else {
-			// the given ID is absent, therefore, find the next best fit
-			if (eventID > tMax) {
-				if (printWorthy) {
-					System.out.println("0 0");
-				}
-				return null;
+		}
+		if (root == null) {
+			generateRBT(batchIds, batchDeltas, distinct);
+			return;
+		}
+		Math.addExact(root.descendantsEventCount, batchTotal);
+		// the hits are applied in place, and the misses are packed to the front
+		// of the batch arrays for the inserts
+		missCount = 0;
+		mergeBatch(root, batchIds, batchDeltas, 0, distinct);
+		int misses = missCount;
+		for (int i = 0; i < misses; i++) {
+			upsert(batchIds[i], batchDeltas[i]);
+		}
+	}
+
+	public void applyBatch(int[] ids, long[] deltas) {
+		applyBatch(ids, deltas, ids.length);
+	}
+
+	// the misses found so far by mergeBatch
+	private int missCount;
+
+	//
+	// Adds the batch slice [from, to), which lies within node's subtree, to
+	// the nodes already present and returns the total it added. The IDs that
+	// are missing are moved to the front of the batch arrays, keeping their
+	// order, since missCount never passes from.
+	//
+	private long mergeBatch(EventNode node, int[] ids, long[] deltas, int from, int to) {
+		if (from == to) {
+			return 0;
+		}
+		if (node == null) {
+			for (int i = from; i < to; i++) {
+				ids[missCount] = ids[i];
+				deltas[missCount] = deltas[i];
+				missCount++;
 			}
-			int leftBestFitID = tMin;
-			EventNode leftNode = null;
-			if (eventID <= tMin) {
-				leftNode = findEventNode(tMin);
+			return 0;
+		}
+		int split = lowerBound(ids, from, to, node.id);
+		long leftAdded = mergeBatch(node.left, ids, deltas, from, split);
+		long added = leftAdded;
+		if (split < to && ids[split] == node.id) {
+			node.count += deltas[split];
+			node.maxEventCount = Math.max(node.maxEventCount, node.count);
+			added += deltas[split];
+			split++;
+		}
+		long rightAdded = mergeBatch(node.right, ids, deltas, split, to);
+		added += rightAdded;
+		// counts only grow here, so only a child that changed can raise the
+		// maximum; the other one is not even read
+		if (leftAdded != 0) {
+			node.maxEventCount = Math.max(node.maxEventCount, node.left.maxEventCount);
+		}
+		if (rightAdded != 0) {
+			node.maxEventCount = Math.max(node.maxEventCount, node.right.maxEventCount);
+		}
+		node.descendantsEventCount += added;
+		return added;
+	}
+
+	//
+	// Returns the counts of the first n IDs, in the order given. Like
+	// applyBatch, it sorts the IDs and answers them all in one in-order pass,
+	// so lookups of nearby IDs share the top of their paths.
+	//
+	public long[] countAll(int[] ids, int n) {
+		long[] counts = new long[n];
+		countBatch(root, ids, sortedOrder(ids, n), 0, n, counts);
+		return counts;
+	}
+
+	public long[] countAll(int[] ids) {
+		return countAll(ids, ids.length);
+	}
+
+	// fills in the counts of the IDs at order[from, to), which lie within node's subtree
+	private void countBatch(EventNode node, int[] ids, int[] order, int from, int to, long[] counts) {
+		if (node == null || from == to) {
+			return; // absent IDs keep their 0
+		}
+		int lo = from, hi = to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ids[order[mid]] < node.id) {
+				lo = mid + 1;
 			} else {
-				while (!(eventID <= leftBestFitID)) {
-					leftNode = next(leftBestFitID, false);
-					leftBestFitID = leftNode.id;
-				}
+				hi = mid;
 			}
-			if (printWorthy) {
-				if (leftNode == null) {
-					System.out.println("0 0");
-				} else {
-					System.out.println(leftNode.id + " " + leftNode.count);
-				}
-			}
-			return leftNode;
 		}
+		int split = lo;
+		countBatch(node.left, ids, order, from, split, counts);
+		while (split < to && ids[order[split]] == node.id) {
+			counts[order[split]] = node.count;
+			split++;
+		}
+		countBatch(node.right, ids, order, split, to, counts);
 	}
 
-	EventNode previous(int eventID, boolean printWorthy) {
-		EventNode event = findEventNode(eventID);
-		if (event != null) {
-			EventNode eventPredecessor = nodePredecessor(event);
-			if (eventPredecessor != null) {
-				if (printWorthy) {
-					System.out.println(eventPredecessor.id + " " + eventPredecessor.count);
-				}
-				return eventPredecessor;
-			} else {
-				EventNode ancestor = event.parent;
-				boolean isFound = false;
-				while (ancestor != null) {
-					if (ancestor.id < eventID) {
-						if (printWorthy) {
-							System.out.println(ancestor.id + " " + ancestor.count);
-						}
-						isFound = true;
-						break;
-					}
-					ancestor = ancestor.parent;
-				}
-				if (!isFound) {
-					if (printWorthy) {
-						System.out.println("0 0");
-					}
-					return null;
-				} else {
-					return ancestor;
-				}
+	//
+	// The indices of the first n IDs in ascending ID order. An LSD radix sort
+	// over only the bits the IDs differ in, 8 at a time, so a clustered batch
+	// is sorted in one or two linear passes.
+	//
+	private static int[] sortedOrder(int[] ids, int n) {
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			min = Math.min(min, ids[i]);
+			max = Math.max(max, ids[i]);
+		}
+		int[] order = new int[n], scratch = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		long span = (long) max - min;
+		int[] starts = new int[257];
+		for (int shift = 0; shift < 32 && span >>> shift != 0; shift += 8) {
+			Arrays.fill(starts, 0);
+			// ids[i] - min wraps around for spans over 2^31, but read unsigned it
+			// is still the offset from min
+			for (int i = 0; i < n; i++) {
+				starts[((ids[order[i]] - min) >>> shift & 0xFF) + 1]++;
 			}
-		} else {
-			// the given ID is absent, therefore, find the next best fit
-			if (eventID < tMin) {
-				if (printWorthy) {
-					System.out.println("0 0");
-				}
-				return null;
+			for (int digit = 0; digit < 256; digit++) {
+				starts[digit + 1] += starts[digit];
+			}
+			for (int i = 0; i < n; i++) {
+				scratch[starts[(ids[order[i]] - min) >>> shift & 0xFF]++] = order[i];
 			}
-			int leftBestFitID = tMax;
-			EventNode rightNode = null;
-			if (eventID >= tMax) {
-				rightNode = findEventNode(tMax);
+			int[] sorted = scratch;
+			scratch = order;
+			order = sorted;
+		}
+		return order;
+	}
+
+	// the first index in [from, to) whose ID is >= id, or to
+	private static int lowerBound(int[] ids, int from, int to, int id) {
+		int lo = from, hi = to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ids[mid] < id) {
+				lo = mid + 1;
 			} else {
-				while (!(eventID >= leftBestFitID)) {
-					rightNode = previous(leftBestFitID, false);
-					leftBestFitID = rightNode.id;
-				}
+				hi = mid;
 			}
-			if (printWorthy) {
-				if (rightNode == null) {
-					System.out.println("0 0");
-				} else {
-					System.out.println(rightNode.id + " " + rightNode.count);
-				}
+		}
+		return lo;
+	}
+
+	// true if eventID has a node, whatever its count
+	public boolean contains(int eventID) {
+		return lookup(eventID) != null;
+	}
+
+	// the number of events in the tree
+	public int size() {
+		return size;
+	}
+
+	// the number of nodes on the longest root-to-leaf path; visits every node
+	public int height() {
+		return height(root);
+	}
+
+	private static int height(EventNode node) {
+		return node == null ? 0 : 1 + Math.max(height(node.left), height(node.right));
+	}
+
+	// the number of black nodes on every root-to-leaf path
+	public int blackHeight() {
+		int black = 0;
+		for (EventNode node = root; node != null; node = node.left) {
+			if (node.isRed == BLACK) {
+				black++;
 			}
-			return rightNode;
+		}
+		return black;
+	}
+
+	// removes every event at once
+	public void clear() {
+		root = null;
+		size = 0;
+		if (hotNodes != null) {
+			hotNodes.clear();
 		}
 	}
 
+	// the smallest ID strictly greater than eventID, whether or not eventID is present
+	public long nextId(int eventID) {
+		EventMetrics.operation(EventMetrics.NEXT);
+		EventNode eventSuccessor = higherEventNode(eventID);
+		return eventSuccessor == null ? NO_ID : eventSuccessor.id;
+	}
+
+	// the largest ID strictly smaller than eventID, whether or not eventID is present
+	public long previousId(int eventID) {
+		EventMetrics.operation(EventMetrics.PREVIOUS);
+		EventNode eventPredecessor = lowerEventNode(eventID);
+		return eventPredecessor == null ? NO_ID : eventPredecessor.id;
+	}
+
+	// the node with the smallest ID >= ID, or null if there is none
 	EventNode getLeftNodeRange(int ID) {
-		EventNode leftNode = findEventNode(ID);
-		if (leftNode == null) {
-			// the given ID is absent, therefore, find the next best fit
-			if (ID > tMax) {
-				return null;
+		EventNode node = root, bestFit = null;
+		while (node != null) {
+			if (ID < node.id) {
+				bestFit = node;
+				node = node.left;
+			} else if (ID > node.id) {
+				node = node.right;
+			} else {
+				return node;
 			}
-			int leftBestFitID = tMin;
+		}
+		return bestFit;
+	}
 
-			if (ID <= tMin) {
-				leftNode = findEventNode(tMin);
+	// the node with the largest ID <= ID, or null if there is none
+	EventNode getRightNodeRange(int ID) {
+		EventNode node = root, bestFit = null;
+		while (node != null) {
+			if (ID > node.id) {
+				bestFit = node;
+				node = node.right;
+			} else if (ID < node.id) {
+				node = node.left;
 			} else {
-				while (!(ID <= leftBestFitID)) {
-					leftNode = next(leftBestFitID, false);
-					leftBestFitID = leftNode.id;
-				}
+				return node;
 			}
-			return leftNode;
-		} else {
-			return leftNode;
 		}
+		return bestFit;
 	}
 
-	EventNode getRightNodeRange(int ID) {
-		EventNode rightNode = findEventNode(ID);
-		if (rightNode == null) {
-			// the given ID is absent, therefore, find the next best fit
-			if (ID < tMin) {
-				return null;
+	// the node with the smallest ID > ID, or null if there is none. A single
+	// root-to-leaf descent, remembering the last node where we turned left.
+	EventNode higherEventNode(int ID) {
+		EventNode node = root, bestFit = null;
+		while (node != null) {
+			if (ID < node.id) {
+				bestFit = node;
+				node = node.left;
+			} else {
+				node = node.right;
 			}
-			int RightBestFitID = tMax;
+		}
+		return bestFit;
+	}
 
-			if (ID >= tMax) {
-				rightNode = findEventNode(tMax);
+	// the node with the largest ID < ID, or null if there is none
+	EventNode lowerEventNode(int ID) {
+		EventNode node = root, bestFit = null;
+		while (node != null) {
+			if (ID > node.id) {
+				bestFit = node;
+				node = node.right;
 			} else {
-				while (!(ID >= RightBestFitID)) {
-					rightNode = previous(RightBestFitID, false);
-					RightBestFitID = rightNode.id;
-				}
+				node = node.left;
 			}
-			return rightNode;
-		} else {
-			return rightNode;
 		}
+		return bestFit;
 	}
 
 	//
-	//Print the total count for IDs between ID1 and
+	//Return the total count for IDs between ID1 and
 	//ID2 inclusively. Note, ID1 ≤ ID2
 	//
-	void inRange(int ID1, int ID2) {
+	public long rangeSum(int ID1, int ID2) {
+		EventMetrics.operation(EventMetrics.INRANGE);
 		if (ID1 == ID2) {
 			EventNode node = findEventNode(ID1);
 			if (node == null) {
-				System.out.println(0);
-				return;
+				return 0;
 			} else {
-				System.out.println(node.count);
-				return;
+				return node.count;
 			}
 		} else {
 			EventNode leftNode = getLeftNodeRange(ID1);
 			EventNode rightNode = getRightNodeRange(ID2);
 			if (leftNode == null || rightNode == null || (leftNode.id > rightNode.id)) {
-				System.out.println(0);
-				return;
+				return 0;
 			} else if (leftNode == rightNode) {
-				System.out.println(leftNode.count);
-				return;
+				return leftNode.count;
 			}
 			ID1 = leftNode.id;
 			ID2 = rightNode.id;
 			EventNode smallestCommonAncestor = lowestCommonAncestor(ID1, ID2);
-			int totalInRangeCount = 0;
+			long totalInRangeCount = 0;
 
 			if (smallestCommonAncestor != leftNode && smallestCommonAncestor != rightNode) {
 				totalInRangeCount = smallestCommonAncestor.count + leftNode.count
@@ -365,114 +575,219 @@ public class RBTree {
 					}
 				}
 			}
-			System.out.println(totalInRangeCount);
+			return totalInRangeCount;
 		}
 	}
 
-	EventNode lowestCommonAncestor(int leftID, int rightID) {
-		EventNode temp = root;
-		while (temp != null) {
-			if (temp.id < leftID && temp.id < rightID) {
-				temp = temp.right;
-			} else if (temp.id > leftID && temp.id > rightID) {
-				temp = temp.left;
-			} else if (temp.id >= leftID && temp.id <= rightID) {
-				break;
+	//
+	// Return the total count of the IDs smaller than eventID, i.e. the
+	// number of events that come before it in ID order. One descent.
+	//
+	public long sumBelow(int eventID) {
+		long total = 0;
+		EventNode node = root;
+		while (node != null) {
+			if (node.id < eventID) {
+				total += getDescendantsEventCount(node.left) + node.count;
+				node = node.right;
 			} else {
-				// the desired range is not present
-				break;
+				node = node.left;
 			}
 		}
-		return temp;
+		return total;
 	}
 
 	//
-	// A temporary NULL sentinal node is created and attached to the parent node
-	// for rebalancing purposes while deletion and deleted thereafter.
+	// Weighted select: lay the events out in ID order, each ID repeated count
+	// times, and return the ID at position p (0-based). That is the smallest
+	// ID whose sumBelow plus count exceeds p. Returns NO_ID if p is negative
+	// or not below the total. One descent.
 	//
-	EventNode createNullSentinel(EventNode parent, boolean onRight) {
-		EventNode nullSentinel = new EventNode(-1, -1);
-		nullSentinel.descendantsEventCount = -1;
-		nullSentinel.isRed = BLACK;
-		nullSentinel.parent = parent;
-		if (onRight) {
-			parent.right = nullSentinel;
-		} else {
-			parent.left = nullSentinel;
+	public long selectByWeight(long p) {
+		if (p < 0) {
+			return NO_ID;
 		}
-		return nullSentinel;
-	}
-
-
-	void cleanNullSentinel(EventNode node) {
-		if (node.id == -1) {
-			removeAllNodeReferences(node);
+		EventNode node = root;
+		while (node != null) {
+			long leftCount = getDescendantsEventCount(node.left);
+			if (p < leftCount) {
+				node = node.left;
+			} else if (p < leftCount + node.count) {
+				return node.id;
+			} else {
+				p -= leftCount + node.count;
+				node = node.right;
+			}
 		}
+		return NO_ID;
 	}
 
-	//insert method of Binary search tree
-	void insertBST(int key, int count) {
-		EventNode newNode = new EventNode(key, count);
-		if (root != null) {
-			EventNode parent = null, temp = root;
-			while (temp != null) {
-				parent = temp;
-				if (key < temp.id) {
-					temp.descendantsEventCount += newNode.count; // this increase count of newNode's ancestors when we traverse down
-					temp = temp.left;
-				} else {
-					temp.descendantsEventCount += newNode.count; // this increase count of newNode's ancestors when we traverse down
-					temp = temp.right;
-				}
+	//
+	// Fills ids and counts with the (at most k) events with the largest
+	// counts, largest first, and returns how many were found. Events with
+	// equal counts come in no particular order.
+	//
+	// Best-first search over maxEventCount: a subtree is only opened when its
+	// largest count could still make the list, so about k log n nodes are
+	// visited instead of all of them.
+	//
+	public int topK(int k, int[] ids, long[] counts) {
+		// a queue entry is either a whole subtree (keyed by its maximum) or a
+		// single node (keyed by its own count)
+		PriorityQueue<TopKEntry> queue = new PriorityQueue<>();
+		if (root != null && k > 0) {
+			queue.add(new TopKEntry(root, true, root.maxEventCount));
+		}
+		int found = 0;
+		while (found < k && !queue.isEmpty()) {
+			TopKEntry entry = queue.poll();
+			EventNode node = entry.node;
+			if (!entry.subtree) {
+				ids[found] = node.id;
+				counts[found] = node.count;
+				found++;
+				continue;
 			}
-			if (key < parent.id) {
-				parent.left = newNode;
-			} else {
-				parent.right = newNode;
+			queue.add(new TopKEntry(node, false, node.count));
+			if (node.left != null) {
+				queue.add(new TopKEntry(node.left, true, node.left.maxEventCount));
 			}
-			newNode.parent = parent;
-			if (newNode.id > tMax) {
-				tMax = newNode.id;
+			if (node.right != null) {
+				queue.add(new TopKEntry(node.right, true, node.right.maxEventCount));
 			}
-			if (newNode.id < tMin) {
-				tMin = newNode.id;
+		}
+		return found;
+	}
+
+	static final class TopKEntry implements Comparable<TopKEntry> {
+		final EventNode node;
+		final boolean subtree;
+		final long key;
+
+		TopKEntry(EventNode node, boolean subtree, long key) {
+			this.node = node;
+			this.subtree = subtree;
+			this.key = key;
+		}
+
+		// largest key first; a single node before a subtree with the same key
+		public int compareTo(TopKEntry other) {
+			if (key != other.key) {
+				return key > other.key ? -1 : 1;
 			}
-		} else {
-			root = newNode;
-			tMin = newNode.id;
-			tMax = newNode.id;
+			return Boolean.compare(subtree, other.subtree);
 		}
-		insertRBTCase1(newNode);
 	}
 
-	int findMinimum() {
-		if (root == null) {
-			return -1;
-		} else {
-			EventNode prev = root, temp = root.left;
-			while (temp != null) {
-				prev = temp;
-				temp = temp.left;
+	//
+	// Calls action with every event in [lo, hi] in ascending ID order and
+	// returns how many there were. One descent finds the first event; each
+	// step after that follows the child and parent links, amortized O(1), and
+	// nothing is allocated. action must not change the tree.
+	//
+	public int rangeScan(int lo, int hi, IdCountConsumer action) {
+		int visited = 0;
+		for (EventNode node = getLeftNodeRange(lo); node != null && node.id <= hi; node = inOrderSuccessor(node)) {
+			action.accept(node.id, node.count);
+			visited++;
+		}
+		return visited;
+	}
+
+	// the same as rangeScan, in descending ID order from hi down to lo
+	public int rangeScanDescending(int lo, int hi, IdCountConsumer action) {
+		int visited = 0;
+		for (EventNode node = getRightNodeRange(hi); node != null && node.id >= lo; node = inOrderPredecessor(node)) {
+			action.accept(node.id, node.count);
+			visited++;
+		}
+		return visited;
+	}
+
+	// a cursor for pulling events out of ranges one at a time; see RangeCursor
+	public RangeCursor rangeCursor() {
+		return new RangeCursor();
+	}
+
+	//
+	// A reusable pull-style cursor over the events in an ID range, ascending
+	// or descending. seek positions it before the first event of a range and
+	// next moves it on by one, amortized O(1). One cursor can serve any
+	// number of scans without allocating. The tree must not change between
+	// a seek and the last next.
+	//
+	public final class RangeCursor {
+		private EventNode current;
+		private EventNode first; // where the next call to next starts after a seek
+		private boolean started;
+		private boolean descending;
+		private int lo, hi;
+
+		RangeCursor() {
+		}
+
+		// positions the cursor before the smallest event in [lo, hi]
+		public void seek(int lo, int hi) {
+			reset(lo, hi, false, getLeftNodeRange(lo));
+		}
+
+		// positions the cursor before the largest event in [lo, hi]
+		public void seekDescending(int lo, int hi) {
+			reset(lo, hi, true, getRightNodeRange(hi));
+		}
+
+		private void reset(int lo, int hi, boolean descending, EventNode first) {
+			this.lo = lo;
+			this.hi = hi;
+			this.descending = descending;
+			this.first = first;
+			this.current = null;
+			this.started = false;
+		}
+
+		// moves to the next event of the range; false once it is exhausted
+		public boolean next() {
+			if (!started) {
+				started = true;
+				current = first;
+				first = null;
+			} else if (current != null) {
+				current = descending ? inOrderPredecessor(current) : inOrderSuccessor(current);
+			}
+			if (current != null && (current.id < lo || current.id > hi)) {
+				current = null;
 			}
-			return prev.id;
+			return current != null;
+		}
+
+		public int id() {
+			return current.id;
+		}
+
+		public long count() {
+			return current.count;
 		}
 	}
 
-	int findMaximum() {
-		if (root == null) {
-			return -1;
-		} else {
-			EventNode prev = root, temp = root.right;
-			while (temp != null) {
-				prev = temp;
+	EventNode lowestCommonAncestor(int leftID, int rightID) {
+		EventNode temp = root;
+		while (temp != null) {
+			if (temp.id < leftID && temp.id < rightID) {
 				temp = temp.right;
+			} else if (temp.id > leftID && temp.id > rightID) {
+				temp = temp.left;
+			} else if (temp.id >= leftID && temp.id <= rightID) {
+				break;
+			} else {
+				// the desired range is not present
+				break;
 			}
-			return prev.id;
 		}
+		return temp;
 	}
 
 	//if the node does not exist, return zero, else return count
-	int getDescendantsEventCount(EventNode node) {
+	long getDescendantsEventCount(EventNode node) {
 		if (node != null) {
 			return node.descendantsEventCount;
 		} else {
@@ -501,202 +816,264 @@ public class RBTree {
 		return null;
 	}
 
-	// the Binary search tree delete method
-	void deleteBST(int key) {
-		EventNode node = findEventNode(key);
-
-		if (node != null) {
-			deleteEventNode(node);
-		}
-	}
-
-
+	//
+	// Removes node from the tree without allocating anything. Its count is
+	// taken off every ancestor in one walk up. A node with two children takes
+	// over its predecessor's event, and the predecessor is unlinked instead.
+	// A black leaf stays attached as a phantom (with an aggregate of 0) while
+	// the fix-up runs, which makes a null sentinel unnecessary.
+	//
 	void deleteEventNode(EventNode node) {
-		if (node != null) {
-			int deletedKeyID = node.id;
-			if (node.left != null && node.right != null) {
-				// If the node has two children, replace the node with its
-				// predecessor, and  then make a recursive call to deleteEventNode(predecessor)
-				// recursively.
-				EventNode predecessor = nodePredecessor(node);
-				replaceEventNode(node, predecessor);
-				deleteEventNode(predecessor);
-			} else {
-				// If only one child, call delete fix up if a Black node is being deleted.
-				// (if it's red, then no RBT properties are violated)
-				boolean moreFixesNeeded = false;
-				EventNode child = null;
-				if (node.isRed == BLACK) {
-					moreFixesNeeded = !deleteFix1(node);
-				}
-				if (node.right != null) {
-					child = node.right;
-
-					if (node.parent == null) {
-						root = child;
-						moreFixesNeeded = false;
-					} else if (node.parent.right == node) {
-						node.parent.right = child;
-					} else {
-						node.parent.left = child;
-					}
-				} else {
-					child = node.left;
-
-					if (node.parent == null) {
-						root = child;
-						moreFixesNeeded = false;
-					} else if (node.parent.right == node) {
-						if (child == null) {
-							child = createNullSentinel(node.parent, true); // adding a dummy sentinel for rebalancing
-						}
-						node.parent.right = child;
-					} else {
-						if (child == null) {
-							child = createNullSentinel(node.parent, false); /// adding a dummy sentinel for rebalancing
-						}
-						node.parent.left = child;
-					}
-				}
-				child.parent = node.parent;
-				if (moreFixesNeeded) {
-					//if the replacement is not root and was previously black
-					deleteRBT2(child);
-					cleanNullSentinel(child);
-				}
-				cleanNullSentinel(child);
+		size--;
+		if (hotNodes != null) {
+			hotNodes.remove(node.id);
+		}
+		for (EventNode ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+			ancestor.descendantsEventCount -= node.count;
+		}
+		if (node.left != null && node.right != null) {
+			EventNode predecessor = nodePredecessor(node);
+			if (hotNodes != null) {
+				// the predecessor's event moves to another node object
+				hotNodes.remove(predecessor.id);
+			}
+			// the predecessor's count moves up into node, so only the nodes
+			// below node lose it
+			for (EventNode ancestor = predecessor; ancestor != node; ancestor = ancestor.parent) {
+				ancestor.descendantsEventCount -= predecessor.count;
 			}
-			if (deletedKeyID == tMin) {
-				tMin = findMinimum();
+			node.id = predecessor.id;
+			node.count = predecessor.count;
+			node = predecessor;
+		}
+		// node now has at most one child
+		EventNode child = node.left != null ? node.left : node.right;
+		if (child != null) {
+			replaceChild(node.parent, node, child);
+			node.parent = node.left = node.right = null;
+			updateMaxEventCounts(child.parent);
+			if (node.isRed == BLACK) {
+				deleteFixUp(child);
 			}
-			if (deletedKeyID == tMax) {
-				tMax = findMaximum();
+		} else if (node.parent == null) {
+			root = null;
+		} else {
+			node.maxEventCount = 0;
+			updateMaxEventCounts(node.parent);
+			if (node.isRed == BLACK) {
+				deleteFixUp(node);
 			}
+			replaceChild(node.parent, node, null);
+			node.parent = null;
 		}
 	}
 
-
-	//Node is the new root and RB Tree properties are preserved
-
-	void deleteRBT1(EventNode node) {
-		if (node.parent != null) {
-			deleteRBT2(node);
-		} else {
-			root = node;
+	// After node's count went up: raises the maximum of node and of its
+	// ancestors, stopping at the first one that already covers it.
+	private void raiseMaxEventCount(EventNode node) {
+		node.maxEventCount = Math.max(node.maxEventCount, node.count);
+		EventNode ancestor = node.parent;
+		while (ancestor != null && ancestor.maxEventCount < node.count) {
+			ancestor.maxEventCount = node.count;
+			ancestor = ancestor.parent;
 		}
 	}
 
-	//If child replacing deleted node is not current root and was previously black
-
-	void deleteRBT2(EventNode node) {
-		EventNode sibNode = sibling(node);
-		if (sibNode.isRed == RED) {
-			node.parent.isRed = RED;
-			sibNode.isRed = BLACK;
-			if (node == node.parent.left) {
-				leftRotate(node.parent);
-			} else {
-				rightRotate(node.parent);
+	// After node's count went down: recomputes the maximum of node and of its
+	// ancestors, stopping at the first one that does not change.
+	private void lowerMaxEventCount(EventNode node) {
+		for (EventNode ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+			long max = ancestor.maxEventCount;
+			updateMaxEventCount(ancestor);
+			if (ancestor.maxEventCount == max) {
+				return;
 			}
 		}
-		deleteRBT3(node);
 	}
 
-	// Parent and both the children are black
-	void deleteRBT3(EventNode node) {
-		EventNode sibNode = sibling(node);
-		if (node.parent.isRed == BLACK && sibNode.isRed == BLACK
-				&& (sibNode.left == null || sibNode.left.isRed == BLACK)
-				&& (sibNode.right == null || sibNode.right.isRed == BLACK)) {
-
-			sibNode.isRed = RED;
-			deleteRBT1(node.parent);
-		} else {
-			deleteRBT4(node);
+	// recomputes the maximum of node and of all its ancestors
+	private void updateMaxEventCounts(EventNode node) {
+		for (; node != null; node = node.parent) {
+			updateMaxEventCount(node);
 		}
 	}
 
-	// Parent is red but both the children are black
-	void deleteRBT4(EventNode node) {
-		EventNode sibNode = sibling(node);
-		if (node.parent.isRed == RED && sibNode.isRed == BLACK
-				&& (sibNode.left == null || sibNode.left.isRed == BLACK)
-				&& (sibNode.right == null || sibNode.right.isRed == BLACK)) {
+	// recomputes the maximum of one node from its own count and its children's
+	void updateMaxEventCount(EventNode node) {
+		long max = node.count;
+		if (node.left != null && node.left.maxEventCount > max) {
+			max = node.left.maxEventCount;
+		}
+		if (node.right != null && node.right.maxEventCount > max) {
+			max = node.right.maxEventCount;
+		}
+		node.maxEventCount = max;
+	}
 
-			sibNode.isRed = RED;
-			node.parent.isRed = BLACK;
+	// puts child where node was below parent
+	private void replaceChild(EventNode parent, EventNode node, EventNode child) {
+		if (child != null) {
+			child.parent = parent;
+		}
+		if (parent == null) {
+			root = child;
+		} else if (parent.left == node) {
+			parent.left = child;
 		} else {
-			deleteRBT5(node);
+			parent.right = child;
 		}
 	}
 
-	void deleteRBT5(EventNode node) {
-		EventNode sibNode = sibling(node);
-		if (sibNode.isRed == BLACK) {
-			if (node == node.parent.left && (sibNode.right == null || sibNode.right.isRed == BLACK)
-					&& (sibNode.left != null && sibNode.left.isRed == RED)) {
-
-				sibNode.isRed = RED;
-				sibNode.left.isRed = BLACK;
-				rightRotate(sibNode);
-			} else if (node == node.parent.right && (sibNode.left == null || sibNode.left.isRed == BLACK)
-					&& (sibNode.right != null && sibNode.right.isRed == RED)) {
-				sibNode.isRed = RED;
-				sibNode.right.isRed = BLACK;
-				leftRotate(sibNode);
+	//
+	// Restores the red-black properties after a black node was removed above
+	// node, which therefore carries an extra black. Iterative; every case is
+	// the mirror image of its counterpart on the other side.
+	//
+	void deleteFixUp(EventNode node) {
+		while (node != root && !isRed(node)) {
+			EventNode parent = node.parent;
+			if (node == parent.left) {
+				EventNode sibNode = parent.right;
+				if (isRed(sibNode)) {
+					// red sibling: rotate it up so the sibling becomes black
+					sibNode.isRed = BLACK;
+					parent.isRed = RED;
+					EventMetrics.recolored(2);
+					leftRotate(parent);
+					sibNode = parent.right;
+				}
+				if (!isRed(sibNode.left) && !isRed(sibNode.right)) {
+					// black sibling with black children: push the extra black up
+					sibNode.isRed = RED;
+					EventMetrics.recolored(1);
+					node = parent;
+				} else {
+					if (!isRed(sibNode.right)) {
+						// only the near nephew is red: turn it into the far one
+						sibNode.left.isRed = BLACK;
+						sibNode.isRed = RED;
+						EventMetrics.recolored(2);
+						rightRotate(sibNode);
+						sibNode = parent.right;
+					}
+					// far nephew is red: one rotation absorbs the extra black
+					sibNode.isRed = parent.isRed;
+					parent.isRed = BLACK;
+					sibNode.right.isRed = BLACK;
+					EventMetrics.recolored(3);
+					leftRotate(parent);
+					node = root;
+				}
+			} else {
+				EventNode sibNode = parent.left;
+				if (isRed(sibNode)) {
+					sibNode.isRed = BLACK;
+					parent.isRed = RED;
+					EventMetrics.recolored(2);
+					rightRotate(parent);
+					sibNode = parent.left;
+				}
+				if (!isRed(sibNode.left) && !isRed(sibNode.right)) {
+					sibNode.isRed = RED;
+					EventMetrics.recolored(1);
+					node = parent;
+				} else {
+					if (!isRed(sibNode.left)) {
+						sibNode.right.isRed = BLACK;
+						sibNode.isRed = RED;
+						EventMetrics.recolored(2);
+						leftRotate(sibNode);
+						sibNode = parent.left;
+					}
+					sibNode.isRed = parent.isRed;
+					parent.isRed = BLACK;
+					sibNode.left.isRed = BLACK;
+					EventMetrics.recolored(3);
+					rightRotate(parent);
+					node = root;
+				}
 			}
 		}
-		deleteRBT6(node);
+		if (isRed(node)) {
+			EventMetrics.recolored(1);
+		}
+		node.isRed = BLACK;
 	}
 
-	void deleteRBT6(EventNode node) {
-		EventNode sibNode = sibling(node);
-
-		sibNode.isRed = node.parent.isRed;
-		node.parent.isRed = BLACK;
+	// null children count as black
+	private static boolean isRed(EventNode node) {
+		return node != null && node.isRed == RED;
+	}
 
-		if (node == node.parent.left) {
-			sibNode.right.isRed = BLACK;
-			leftRotate(node.parent);
-		} else {
-			sibNode.left.isRed = BLACK;
-			rightRotate(node.parent);
+	// the node with the smallest ID, or null if the tree is empty
+	EventNode firstEventNode() {
+		EventNode node = root;
+		while (node != null && node.left != null) {
+			node = node.left;
 		}
+		return node;
 	}
 
-	// If the node to be deleted is black and has just a single red child , paint the child black.
+	// the next node in ID order, climbing through the parent pointers when
+	// there is no right subtree
+	EventNode inOrderSuccessor(EventNode node) {
+		if (node.right != null) {
+			return nodeSuccessor(node);
+		}
+		EventNode child = node, ancestor = node.parent;
+		while (ancestor != null && child == ancestor.right) {
+			child = ancestor;
+			ancestor = ancestor.parent;
+		}
+		return ancestor;
+	}
 
-	boolean deleteFix1(EventNode node) {
-		if (node.isRed == BLACK && node.right != null && node.right.isRed == RED) {
-			node.right.isRed = BLACK;
-			return true;
-		} else if (node.isRed == BLACK && node.left != null && node.left.isRed == RED) {
-			node.left.isRed = BLACK;
-			return true;
+	// the previous node in ID order, the mirror image of inOrderSuccessor
+	EventNode inOrderPredecessor(EventNode node) {
+		if (node.left != null) {
+			return nodePredecessor(node);
+		}
+		EventNode child = node, ancestor = node.parent;
+		while (ancestor != null && child == ancestor.left) {
+			child = ancestor;
+			ancestor = ancestor.parent;
 		}
-		return false;
+		return ancestor;
 	}
 
+	//
+	// The events in ID order as a cursor, e.g. for writing a snapshot. Each
+	// step is amortized O(1). The tree must not change while the cursor is in
+	// use.
+	//
+	BulkLoader.SortedEvents events() {
+		final int n = size;
+		return new BulkLoader.SortedEvents() {
+			private EventNode current = null;
+			private boolean started = false;
+
+			public int size() {
+				return n;
+			}
 
-	 // removes all reference to a node (to be deleted) the parent is set to NULL
-	void removeAllNodeReferences(EventNode node) {
-		if (node != null) {
-			if (node == root) {
-				root = null;
-			} else {
-				if (node.parent.left == node) {
-					node.parent.left = null;
-				} else {
-					node.parent.right = null;
+			public boolean next() {
+				if (!started) {
+					started = true;
+					current = firstEventNode();
+				} else if (current != null) {
+					current = inOrderSuccessor(current);
 				}
+				return current != null;
 			}
-		}
-	}
 
-	// replaces a node
-	void replaceEventNode(EventNode originalNode, EventNode newNode) {
-		originalNode.id = newNode.id;
-		originalNode.count = newNode.count;
+			public int id() {
+				return current.id;
+			}
+
+			public long count() {
+				return current.count;
+			}
+		};
 	}
 
 	//Returns the left-most child in the right
@@ -765,6 +1142,7 @@ public class RBTree {
 		if (node != null) {
 			if (node.parent == null) {
 				node.isRed = BLACK;
+				EventMetrics.recolored(1);
 			} else {
 				insertRBTCase2(node);
 			}
@@ -789,6 +1167,7 @@ public class RBTree {
 			uncle.isRed = BLACK;
 			EventNode grandparent = grandParent(node);
 			grandparent.isRed = RED;
+			EventMetrics.recolored(3);
 			insertRBTCase1(grandparent);
 		} else {
 			insertRBTCase4(node);
@@ -800,6 +1179,7 @@ public class RBTree {
 		EventNode parent = node.parent;
 		if (gParent.left == parent && parent.right == node) {
 			// left-rotate
+			EventMetrics.rotated();
 			parent.right = node.left;
 			if (parent.right != null) {
 				parent.right.parent = parent;
@@ -809,11 +1189,14 @@ public class RBTree {
 			node.parent = gParent;
 			gParent.left = node;
 			node = node.left;
-			int prevParentDescendantsEventCount = node.descendantsEventCount;
+			long prevParentDescendantsEventCount = node.descendantsEventCount;
 			node.descendantsEventCount -= node.parent.descendantsEventCount - getDescendantsEventCount(node.right);
 			node.parent.descendantsEventCount = prevParentDescendantsEventCount;
+			updateMaxEventCount(node);
+			updateMaxEventCount(node.parent);
 		} else if (gParent.right == parent && parent.left == node) {
 			// right-rotate
+			EventMetrics.rotated();
 			parent.left = node.right;
 			if (parent.left != null) {
 				parent.left.parent = parent;
@@ -823,9 +1206,11 @@ public class RBTree {
 			node.parent = gParent;
 			gParent.right = node;
 			node = node.right;
-			int prevParentDescendantsEventCount = node.descendantsEventCount;
+			long prevParentDescendantsEventCount = node.descendantsEventCount;
 			node.descendantsEventCount -= node.parent.descendantsEventCount - getDescendantsEventCount(node.left);
 			node.parent.descendantsEventCount = prevParentDescendantsEventCount;
+			updateMaxEventCount(node);
+			updateMaxEventCount(node.parent);
 		}
 		insertRBTCase5(node);
 	}
@@ -835,6 +1220,7 @@ public class RBTree {
 		EventNode parent = node.parent;
 		parent.isRed = BLACK;
 		gParent.isRed = RED;
+		EventMetrics.recolored(2);
 		if (parent.right == node) {
 			leftRotate(gParent);
 		} else {
@@ -844,6 +1230,7 @@ public class RBTree {
 
 	void leftRotate(EventNode node) {
 		if (node != null && node.right != null) {
+			EventMetrics.rotated();
 			EventNode rightChild = node.right;
 			EventNode gParent = node.parent;
 			node.right = rightChild.left;
@@ -862,14 +1249,17 @@ public class RBTree {
 			} else {
 				root = rightChild;
 			}
-			int prevParentDescendantsEventCount = node.descendantsEventCount;
+			long prevParentDescendantsEventCount = node.descendantsEventCount;
 			node.descendantsEventCount -= node.parent.descendantsEventCount - getDescendantsEventCount(node.right);
 			node.parent.descendantsEventCount = prevParentDescendantsEventCount;
+			updateMaxEventCount(node);
+			updateMaxEventCount(node.parent);
 		}
 	}
 
 	void rightRotate(EventNode node) {
 		if (node != null && node.left != null) {
+			EventMetrics.rotated();
 			EventNode leftChild = node.left, gParent = node.parent;
 			node.left = leftChild.right;
 			if (node.left != null) {
@@ -887,9 +1277,11 @@ public class RBTree {
 			} else {
 				root = leftChild;
 			}
-			int prevParentDescendantsEventCount = node.descendantsEventCount;
+			long prevParentDescendantsEventCount = node.descendantsEventCount;
 			node.descendantsEventCount -= node.parent.descendantsEventCount - getDescendantsEventCount(node.left);
 			node.parent.descendantsEventCount = prevParentDescendantsEventCount;
+			updateMaxEventCount(node);
+			updateMaxEventCount(node.parent);
 		}
 	}
 
@@ -909,6 +1301,7 @@ public class RBTree {
 			node.descendantsEventCount += node.right.descendantsEventCount;
 			node.right.parent = node;
 		}
+		updateMaxEventCount(node);
 		if (currHeight == maxHeight) {
 			node.isRed = RED;
 		}
@@ -916,9 +1309,184 @@ public class RBTree {
 	}
 
 	void generateRBT(EventNode arr[], int n) {
-		tMin = arr[0].id;
-		tMax = arr[n - 1].id;
+		size = n;
+		if (hotNodes != null) {
+			hotNodes.clear(); // every node is new
+		}
+		if (n == 0) {
+			root = null;
+			return;
+		}
 		root = generateBST(arr, 0, n - 1, 0, getMaxHeight(n));
+		root.isRed = BLACK; // for n == 1 the root is also the deepest level
+	}
+
+	//
+	// Builds the same tree as generateRBT from events sorted by ID, creating the
+	// nodes as it goes. Above PARALLEL_BUILD_CUTOFF events the left and right
+	// subtrees are built as separate fork-join tasks, so node allocation and
+	// the aggregate computation spread over every core.
+	//
+	void generateRBT(int[] ids, long[] counts, int n) {
+		root = null;
+		size = n;
+		if (hotNodes != null) {
+			hotNodes.clear(); // every node is new
+		}
+		if (n == 0) {
+			return;
+		}
+		root = ForkJoinPool.commonPool().invoke(new BuildTask(ids, counts, 0, n - 1, 0, getMaxHeight(n)));
+		root.parent = null;
+		root.isRed = BLACK;
+	}
+
+	// below this many events a subtree is cheaper to build on the current thread
+	static final int PARALLEL_BUILD_CUTOFF = 1 << 13;
+
+	final class BuildTask extends RecursiveTask<EventNode> {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] ids;
+		private final long[] counts;
+		private final int start, end, currHeight, maxHeight;
+
+		BuildTask(int[] ids, long[] counts, int start, int end, int currHeight, int maxHeight) {
+			this.ids = ids;
+			this.counts = counts;
+			this.start = start;
+			this.end = end;
+			this.currHeight = currHeight;
+			this.maxHeight = maxHeight;
+		}
+
+		@Override
+		protected EventNode compute() {
+			if (end - start + 1 <= PARALLEL_BUILD_CUTOFF) {
+				return generateBST(ids, counts, start, end, currHeight, maxHeight);
+			}
+			int mid = start + (end - start) / 2;
+			BuildTask leftTask = new BuildTask(ids, counts, start, mid - 1, currHeight + 1, maxHeight);
+			leftTask.fork();
+			EventNode right = new BuildTask(ids, counts, mid + 1, end, currHeight + 1, maxHeight).compute();
+			EventNode left = leftTask.join();
+			return link(new EventNode(ids[mid], counts[mid]), left, right, currHeight == maxHeight);
+		}
+	}
+
+	EventNode generateBST(int[] ids, long[] counts, int start, int end, int currHeight, int maxHeight) {
+		if (start > end) {
+			return null;
+		}
+		int mid = start + (end - start) / 2;
+		EventNode node = new EventNode(ids[mid], counts[mid]);
+		EventNode left = generateBST(ids, counts, start, mid - 1, currHeight + 1, maxHeight);
+		EventNode right = generateBST(ids, counts, mid + 1, end, currHeight + 1, maxHeight);
+		return link(node, left, right, currHeight == maxHeight);
+	}
+
+	// attaches the children to a freshly built node and sets its color and aggregate
+	private EventNode link(EventNode node, EventNode left, EventNode right, boolean isRed) {
+		node.left = left;
+		node.right = right;
+		if (left != null) {
+			node.descendantsEventCount += left.descendantsEventCount;
+			left.parent = node;
+		}
+		if (right != null) {
+			node.descendantsEventCount += right.descendantsEventCount;
+			right.parent = node;
+		}
+		updateMaxEventCount(node);
+		node.isRed = isRed;
+		return node;
+	}
+
+	//
+	// Builds the same tree as generateRBT, but straight from a stream of events
+	// sorted by ID, without recursion and without an intermediate array. The
+	// mid-split shape is walked in order with an explicit stack of ranges (one
+	// per level), so each event becomes a node the moment it is read.
+	//
+	void generateRBT(BulkLoader.SortedEvents events) throws java.io.IOException {
+		int n = events.size();
+		root = null;
+		size = n;
+		if (hotNodes != null) {
+			hotNodes.clear(); // every node is new
+		}
+		if (n == 0) {
+			return;
+		}
+		int maxHeight = getMaxHeight(n);
+		int levels = maxHeight + 2;
+		int[] starts = new int[levels], ends = new int[levels], depths = new int[levels];
+		EventNode[] rightOf = new EventNode[levels]; // parent waiting for this range as its right subtree
+		EventNode[] lastAtDepth = new EventNode[levels]; // last node created on each level
+		int top = 0;
+
+		// push the whole range and its left spine; the stack never holds more
+		// than one range per level
+		for (int start = 0, end = n - 1; start <= end; end = start + (end - start) / 2 - 1) {
+			starts[top] = start;
+			ends[top] = end;
+			depths[top] = top;
+			rightOf[top] = null;
+			top++;
+		}
+		while (top > 0) {
+			top--;
+			int start = starts[top], end = ends[top], mid = start + (end - start) / 2;
+			int depth = depths[top];
+			if (!events.next()) {
+				throw new IllegalStateException("Expected " + n + " events but the stream ended early");
+			}
+			EventNode node = new EventNode(events.id(), events.count());
+			node.isRed = depth == maxHeight;
+			if (start <= mid - 1) {
+				node.left = lastAtDepth[depth + 1];
+				node.left.parent = node;
+			}
+			if (rightOf[top] != null) {
+				node.parent = rightOf[top];
+				node.parent.right = node;
+			} else if (depth == 0) {
+				root = node;
+			}
+			lastAtDepth[depth] = node;
+			// push the right subtree and its left spine
+			for (int s = mid + 1, e = end, d = depth + 1; s <= e; e = s + (e - s) / 2 - 1, d++) {
+				starts[top] = s;
+				ends[top] = e;
+				depths[top] = d;
+				rightOf[top] = d == depth + 1 ? node : null;
+				top++;
+			}
+		}
+		root.isRed = BLACK;
+		computeDescendantsEventCounts();
+	}
+
+	// Fills in descendantsEventCount and maxEventCount bottom-up with an
+	// iterative post-order walk that follows the parent pointers, so it needs
+	// no stack at all.
+	void computeDescendantsEventCounts() {
+		EventNode prev = null, node = root;
+		while (node != null) {
+			EventNode next;
+			if (prev == node.parent && node.left != null) {
+				next = node.left;
+			} else if ((prev == node.parent || prev == node.left) && node.right != null) {
+				next = node.right;
+			} else {
+				node.descendantsEventCount = node.count + getDescendantsEventCount(node.left)
+						+ getDescendantsEventCount(node.right);
+				updateMaxEventCount(node);
+				next = node.parent;
+			}
+			prev = node;
+			node = next;
+		}
 	}
 
 	public static int getMaxHeight(int n) {
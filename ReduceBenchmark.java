@@ -0,0 +1,59 @@
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+//
+// Measures reduce-to-zero churn on an RBTree: every round deletes a batch of
+// random events and then inserts them again. Only the deletes are timed, and
+// the bytes the thread allocates during them are read from the JVM, so the
+// report shows whether the delete path allocates anything at all.
+//
+// usage: java ReduceBenchmark [events] [batch] [rounds]
+//
+public class ReduceBenchmark {
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+		int batch = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 16;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		int[] ids = new int[n];
+		long[] counts = new long[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = 2 * i;
+			counts[i] = 1 + i % 7;
+		}
+		RBTree tree = new RBTree();
+		tree.generateRBT(ids, counts, n);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		Random random = new Random(42);
+		int[] victims = new int[batch];
+		long deleteNanos = 0, deleteBytes = 0, deletes = 0;
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < batch; i++) {
+				victims[i] = ids[random.nextInt(n)];
+			}
+			long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			for (int i = 0; i < batch; i++) {
+				tree.reduce(victims[i], Long.MAX_VALUE);
+			}
+			long elapsed = System.nanoTime() - start;
+			long allocated = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+			for (int i = 0; i < batch; i++) {
+				if (tree.count(victims[i]) == 0) {
+					tree.increase(victims[i], 1);
+				}
+			}
+			// the first rounds warm up the JIT and are not reported
+			if (round >= rounds / 5) {
+				deleteNanos += elapsed;
+				deleteBytes += allocated;
+				deletes += batch;
+			}
+		}
+		System.out.printf("reduce to zero: %.1f ns/op, %.3f bytes/op over %d ops%n", (double) deleteNanos / deletes,
+				(double) deleteBytes / deletes, deletes);
+	}
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+//
+// Serves queries straight from a mapped EventSnapshot right after a restart.
+// The first increase or reduce starts building the mutable engine on a
+// background thread and does not wait for it: until the engine is ready,
+// changes go to a SnapshotOverlay, which queries merge with the snapshot.
+// The first call after the build finishes replays the overlay into the
+// engine, and from then on every call goes to the engine.
+//
+// Once the overlay holds OVERLAY_LIMIT IDs, the next change waits for the
+// build. Only one thread may use the counter; the builder reads the
+// snapshot on its own.
+//
+public class RestoredEventCounter implements EventCounter {
+
+	// changed IDs the overlay holds before a change waits for the engine
+	static final int OVERLAY_LIMIT = 1 << 16;
+
+	// builds the mutable engine from the snapshot's events
+	public interface EngineBuilder {
+		EventCounter build(BulkLoader.SortedEvents events) throws IOException;
+	}
+
+	private final EventSnapshot snapshot;
+	private final EngineBuilder builder;
+	private EventCounter engine;
+	private SnapshotOverlay overlay; // the changes while the engine is built
+	private Thread building;
+	private volatile EventCounter built; // set by the builder thread
+	private volatile Throwable buildFailure; // set by the builder thread
+
+	public RestoredEventCounter(EventSnapshot snapshot, EngineBuilder builder) {
+		this.snapshot = snapshot;
+		this.builder = builder;
+	}
+
+	//
+	// The view that currently answers: the snapshot until the first write,
+	// then the overlay until the engine is ready.
+	//
+	EventQueries reader() {
+		if (building == null) {
+			return snapshot;
+		}
+		return handOver() ? engine : overlay;
+	}
+
+	// waits for the engine build, if one has started, and hands the overlay over
+	void awaitEngine() {
+		if (building != null && engine == null) {
+			join();
+			handOver();
+		}
+	}
+
+	// true once a change has been made, i.e. the snapshot is out of date
+	public boolean isModified() {
+		return building != null;
+	}
+
+	// the snapshot the counter was restored from
+	public EventSnapshot snapshot() {
+		return snapshot;
+	}
+
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		return writer().increase(id, delta);
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		return writer().reduce(id, delta);
+	}
+
+	public long count(int id) {
+		return reader().count(id);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		return reader().rangeSum(lo, hi);
+	}
+
+	public long nextId(int id) {
+		return reader().nextId(id);
+	}
+
+	public long previousId(int id) {
+		return reader().previousId(id);
+	}
+
+	//
+	// Where changes go: the engine if it is ready, else the overlay. Starts
+	// the build on the first change, and waits for it once the overlay is full.
+	//
+	private EventCounter writer() {
+		if (building == null) {
+			overlay = new SnapshotOverlay(snapshot);
+			building = new Thread(this::build, "snapshot-restore");
+			building.setDaemon(true);
+			building.start();
+			return overlay;
+		}
+		if (!handOver() && overlay.changedIds() >= OVERLAY_LIMIT) {
+			awaitEngine();
+		}
+		return engine != null ? engine : overlay;
+	}
+
+	// runs on the builder thread
+	private void build() {
+		try (BulkLoader.SortedEvents events = snapshot.events()) {
+			built = builder.build(events);
+		} catch (IOException | RuntimeException | Error e) {
+			buildFailure = e;
+		}
+	}
+
+	//
+	// True once the engine answers. If the build has just finished, replays
+	// the overlay into it first; if it failed, throws the failure.
+	//
+	private boolean handOver() {
+		if (engine != null) {
+			return true;
+		}
+		Throwable failure = buildFailure;
+		if (failure != null) {
+			if (failure instanceof IOException) {
+				throw new UncheckedIOException((IOException) failure);
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw (RuntimeException) failure;
+		}
+		EventCounter ready = built;
+		if (ready == null) {
+			return false;
+		}
+		overlay.applyTo(ready);
+		overlay = null;
+		engine = ready;
+		return true;
+	}
+
+	private void join() {
+		boolean interrupted = false;
+		while (building.isAlive()) {
+			try {
+				building.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+//
+// Collects command results in a reusable byte buffer and writes them to the
+// underlying stream in large blocks. Numbers are formatted straight into the
+// buffer, so printing a result allocates nothing. With autoFlush set, the
+// buffer is flushed at the end of every command (the interactive behaviour).
+//
+public class ResultWriter {
+
+	static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	// enough room for the longest line we format: two longs, a space and a newline
+	private static final int MAX_LINE_LENGTH = 2 * 20 + 2;
+	private static final byte[] MIN_VALUE_DIGITS = Long.toString(Long.MIN_VALUE).getBytes();
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position;
+	private final boolean autoFlush;
+
+	public ResultWriter(OutputStream out, boolean autoFlush) {
+		this(out, DEFAULT_BUFFER_SIZE, autoFlush);
+	}
+
+	public ResultWriter(OutputStream out, int bufferSize, boolean autoFlush) {
+		this.out = out;
+		this.buffer = new byte[Math.max(bufferSize, MAX_LINE_LENGTH)];
+		this.autoFlush = autoFlush;
+	}
+
+	// writes "value\n"
+	public void println(long value) {
+		ensureCapacity(MAX_LINE_LENGTH);
+		writeLong(value);
+		buffer[position++] = '\n';
+	}
+
+	// writes "id count\n"
+	public void println(long id, long count) {
+		ensureCapacity(MAX_LINE_LENGTH);
+		writeLong(id);
+		buffer[position++] = ' ';
+		writeLong(count);
+		buffer[position++] = '\n';
+	}
+
+	// writes an ASCII message followed by a newline
+	public void println(String message) {
+		for (int i = 0; i < message.length(); i++) {
+			ensureCapacity(1);
+			buffer[position++] = (byte) message.charAt(i);
+		}
+		ensureCapacity(1);
+		buffer[position++] = '\n';
+	}
+
+	// marks the end of a command's output
+	public void endCommand() {
+		if (autoFlush) {
+			flush();
+		}
+	}
+
+	public void flush() {
+		try {
+			out.write(buffer, 0, position);
+			out.flush();
+			position = 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void ensureCapacity(int length) {
+		if (buffer.length - position < length) {
+			try {
+				out.write(buffer, 0, position);
+				position = 0;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// formats the digits right to left, in place
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			for (int i = 0; i < MIN_VALUE_DIGITS.length; i++) {
+				buffer[position++] = MIN_VALUE_DIGITS[i];
+			}
+			return;
+		}
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		int end = position + digits;
+		for (int i = end - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		position = end;
+	}
+}
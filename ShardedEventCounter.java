@@ -0,0 +1,690 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+//
+// An event counter spread over several cores. The ID space is cut into key
+// ranges, one per shard, and each shard is a worker thread with its own
+// RBTree. Only the worker touches its tree, so the tree code needs no locks.
+//
+// A caller hands every operation to the owning shard through the shard's
+// ring, a bounded lock-free queue for many producers and one consumer, and
+// waits for the answer:
+//   - increase, reduce and count go to the shard that owns the ID;
+//   - rangeSum goes to every shard the range overlaps, all at once, and the
+//     answers are added up;
+//   - nextId and previousId ask the owning shard, then its neighbours in
+//     order, until one of them has an answer.
+//
+// When one shard holds far more events than the average, a balancer thread
+// moves events to a neighbour and shifts the boundary between the two. Both
+// shards are paused while it does. Every request carries the partition it
+// was routed with, and a request that reaches a shard after the boundaries
+// moved is sent back to be routed again. A query spanning several shards
+// starts over in that case, so it never sees an event twice or misses one
+// that moved. Apart from that, such queries are not atomic with respect to
+// concurrent changes in other shards.
+//
+// Each shard guards the total of its own tree against overflow; rangeSum
+// throws ArithmeticException if the shards' totals do not add up in a long.
+//
+public class ShardedEventCounter implements EventCounter, Closeable {
+
+	private static final int RING_CAPACITY = 1 << 10; // requests per shard, a power of two
+	// busy polls before a waiting thread parks; spinning only helps if the
+	// other side can run at the same time
+	private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 10 : 0;
+	// a shard is skewed once it holds this many percent of the mean number of events ...
+	private static final int SKEW_PERCENT = 150;
+	// ... and at least this many more than a neighbour; smaller moves are not worth a pause
+	private static final int MIN_MOVE = 1 << 10;
+	// events added or removed in a shard between two skew checks
+	private static final int CHECK_EVERY = 1 << 12;
+
+	// request kinds
+	private static final int INCREASE = 0, REDUCE = 1, COUNT = 2, RANGE_SUM = 3, NEXT = 4, PREVIOUS = 5, PAUSE = 6,
+			STOP = 7;
+	// request states
+	private static final int PENDING = 0, DONE = 1, STALE = 2;
+
+	//
+	// Shard s owns the IDs from lows[s] up to lows[s + 1] - 1, and the last
+	// shard owns everything from its low up. lows[0] is always
+	// Integer.MIN_VALUE. Never modified; a rebalance publishes a new one.
+	//
+	static final class Partition {
+		final int[] lows;
+
+		Partition(int[] lows) {
+			this.lows = lows;
+		}
+
+		int shardOf(int id) {
+			int lo = 0, hi = lows.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (lows[mid] <= id) {
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return lo;
+		}
+	}
+
+	//
+	// One operation in flight. Each caller thread reuses its own requests, so
+	// an operation allocates nothing. The worker fills in the result and
+	// flips state; the caller spins on state for a while, then parks.
+	//
+	static final class Request {
+		final Thread caller = Thread.currentThread();
+		int kind;
+		int id;
+		int hi; // the end of the range for RANGE_SUM
+		long delta;
+		Partition partition; // the partition the request was routed with
+		long result;
+		RuntimeException failure;
+		volatile int state = DONE;
+		volatile boolean parked;
+
+		void prepare(int kind, int id, int hi, long delta, Partition partition) {
+			this.kind = kind;
+			this.id = id;
+			this.hi = hi;
+			this.delta = delta;
+			this.partition = partition;
+			this.failure = null;
+			this.state = PENDING;
+		}
+
+		void await() {
+			for (int spins = 0; state == PENDING; spins++) {
+				if (spins < SPIN_TRIES) {
+					Thread.onSpinWait();
+					continue;
+				}
+				// the worker checks parked after setting state, and we check
+				// state after setting parked, so one of us sees the other
+				parked = true;
+				if (state == PENDING) {
+					LockSupport.park(this);
+				}
+				parked = false;
+			}
+		}
+
+		void complete(int outcome) {
+			state = outcome;
+			if (parked) {
+				LockSupport.unpark(caller);
+			}
+		}
+
+		// the answer, or the worker's exception rethrown in the caller
+		long result() {
+			if (failure != null) {
+				throw failure;
+			}
+			return result;
+		}
+	}
+
+	//
+	// A bounded multi-producer, single-consumer queue (Vyukov's design). Each
+	// slot has a sequence number that says whose turn it is: a producer may
+	// fill slot i for ticket t once it reads t, and the consumer may take it
+	// once it reads t + 1.
+	//
+	static final class Ring {
+		private final AtomicReferenceArray<Request> slots = new AtomicReferenceArray<>(RING_CAPACITY);
+		private final AtomicLongArray sequences = new AtomicLongArray(RING_CAPACITY);
+		private final AtomicLong tail = new AtomicLong(); // the next ticket, shared by the producers
+		private long head; // the next ticket to take, read by the consumer only
+
+		Ring() {
+			for (int i = 0; i < RING_CAPACITY; i++) {
+				sequences.set(i, i);
+			}
+		}
+
+		// false if the ring is full
+		boolean offer(Request request) {
+			long ticket = tail.get();
+			while (true) {
+				int slot = (int) ticket & (RING_CAPACITY - 1);
+				long turn = sequences.get(slot) - ticket;
+				if (turn == 0) {
+					if (tail.compareAndSet(ticket, ticket + 1)) {
+						slots.lazySet(slot, request);
+						sequences.set(slot, ticket + 1);
+						return true;
+					}
+					ticket = tail.get();
+				} else if (turn < 0) {
+					return false; // the consumer has not emptied the slot from the previous lap
+				} else {
+					ticket = tail.get(); // another producer took this ticket
+				}
+			}
+		}
+
+		// the oldest request, or null if there is none
+		Request poll() {
+			int slot = (int) head & (RING_CAPACITY - 1);
+			if (sequences.get(slot) != head + 1) {
+				return null;
+			}
+			Request request = slots.get(slot);
+			slots.lazySet(slot, null);
+			sequences.lazySet(slot, head + RING_CAPACITY);
+			head++;
+			return request;
+		}
+
+		boolean isEmpty() {
+			return sequences.get((int) head & (RING_CAPACITY - 1)) != head + 1;
+		}
+	}
+
+	final class Shard implements Runnable {
+		final int index;
+		final RBTree tree;
+		final Ring ring = new Ring();
+		final Thread worker;
+		volatile boolean sleeping; // the worker is parked, or about to park, waiting for requests
+		long pauses; // PAUSE requests sent so far; written under the rebalance lock
+		volatile long resumed; // the last PAUSE the worker may move on from
+		volatile int size; // the tree's size as of the last change, for the balancer
+		private boolean running = true;
+		private int changesSinceCheck;
+
+		Shard(int index, RBTree tree) {
+			this.index = index;
+			this.tree = tree;
+			this.size = tree.size();
+			this.worker = new Thread(this, "shard-" + index);
+			this.worker.setDaemon(true);
+		}
+
+		void submit(Request request) {
+			while (!ring.offer(request)) {
+				Thread.yield(); // the worker is behind; give it the core
+			}
+			if (sleeping) {
+				LockSupport.unpark(worker);
+			}
+		}
+
+		public void run() {
+			while (running) {
+				Request request = ring.poll();
+				if (request == null) {
+					idle();
+				} else {
+					execute(request);
+				}
+			}
+		}
+
+		private void idle() {
+			for (int spins = 0; spins < SPIN_TRIES; spins++) {
+				if (!ring.isEmpty()) {
+					return;
+				}
+				Thread.onSpinWait();
+			}
+			sleeping = true;
+			if (ring.isEmpty()) {
+				LockSupport.park(this);
+			}
+			sleeping = false;
+		}
+
+		private void execute(Request request) {
+			if (request.kind == PAUSE) {
+				// numbered, because the next pause may begin before this worker
+				// has even noticed the resume
+				long pause = request.delta;
+				request.complete(DONE);
+				while (resumed < pause) {
+					LockSupport.park(this);
+				}
+				return;
+			}
+			if (request.kind == STOP) {
+				running = false;
+				request.complete(DONE);
+				return;
+			}
+			if (request.partition != partition) {
+				// routed before the boundaries moved; it may not be ours any more
+				request.complete(STALE);
+				return;
+			}
+			try {
+				request.result = apply(request);
+			} catch (RuntimeException e) {
+				request.failure = e;
+			}
+			if (tree.size() != size) {
+				size = tree.size();
+				if (++changesSinceCheck == CHECK_EVERY) {
+					changesSinceCheck = 0;
+					if (isSkewed(index)) {
+						requestRebalance();
+					}
+				}
+			}
+			request.complete(DONE);
+		}
+
+		private long apply(Request request) {
+			switch (request.kind) {
+			case INCREASE:
+				return tree.increase(request.id, request.delta);
+			case REDUCE:
+				return tree.reduce(request.id, request.delta);
+			case COUNT:
+				return tree.count(request.id);
+			case RANGE_SUM:
+				return tree.rangeSum(request.id, request.hi);
+			case NEXT:
+				return tree.nextId(request.id);
+			case PREVIOUS:
+				return tree.previousId(request.id);
+			default:
+				throw new IllegalStateException("Unknown request: " + request.kind);
+			}
+		}
+	}
+
+	private final Shard[] shards;
+	private volatile Partition partition;
+	private final ThreadLocal<Request[]> requests;
+	private final ReentrantLock rebalanceLock = new ReentrantLock(); // held while shards are paused
+	private final Thread balancer;
+	private volatile boolean rebalanceRequested;
+	private volatile boolean closed;
+
+	// an empty counter whose shards split the int range evenly
+	public ShardedEventCounter(int shardCount) {
+		this(emptyTrees(shardCount), evenLows(shardCount));
+	}
+
+	private ShardedEventCounter(RBTree[] trees, int[] lows) {
+		int shardCount = trees.length;
+		this.partition = new Partition(lows);
+		this.requests = ThreadLocal.withInitial(() -> {
+			Request[] mine = new Request[shardCount];
+			for (int i = 0; i < shardCount; i++) {
+				mine[i] = new Request();
+			}
+			return mine;
+		});
+		this.shards = new Shard[shardCount];
+		for (int s = 0; s < shardCount; s++) {
+			shards[s] = new Shard(s, trees[s]);
+		}
+		this.balancer = new Thread(this::balance, "shard-balancer");
+		this.balancer.setDaemon(true);
+		for (Shard shard : shards) {
+			shard.worker.start();
+		}
+		balancer.start();
+	}
+
+	//
+	// Builds a counter from events sorted by ID. The boundaries are chosen so
+	// that every shard starts with the same number of events, and the shard
+	// trees are built with the bulk builder.
+	//
+	public static ShardedEventCounter fromSorted(BulkLoader.SortedEvents events, int shardCount) throws IOException {
+		int n = events.size();
+		int[] ids = events.ids();
+		long[] counts = events.counts();
+		if (ids == null) {
+			ids = new int[n];
+			counts = new long[n];
+			for (int i = 0; events.next(); i++) {
+				ids[i] = events.id();
+				counts[i] = events.count();
+			}
+		}
+		RBTree[] trees = emptyTrees(shardCount);
+		if (n < shardCount) {
+			// too few events to give every shard one
+			int[] lows = evenLows(shardCount);
+			Partition partition = new Partition(lows);
+			for (int i = 0; i < n; i++) {
+				trees[partition.shardOf(ids[i])].increase(ids[i], counts[i]);
+			}
+			return new ShardedEventCounter(trees, lows);
+		}
+		int[] lows = new int[shardCount];
+		for (int s = 0; s < shardCount; s++) {
+			int start = (int) ((long) n * s / shardCount), end = (int) ((long) n * (s + 1) / shardCount);
+			lows[s] = s == 0 ? Integer.MIN_VALUE : ids[start];
+			trees[s].generateRBT(Arrays.copyOfRange(ids, start, end), Arrays.copyOfRange(counts, start, end), end - start);
+		}
+		return new ShardedEventCounter(trees, lows);
+	}
+
+	private static RBTree[] emptyTrees(int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("A sharded counter needs at least one shard: " + shardCount);
+		}
+		RBTree[] trees = new RBTree[shardCount];
+		for (int s = 0; s < shardCount; s++) {
+			trees[s] = new RBTree();
+		}
+		return trees;
+	}
+
+	private static int[] evenLows(int shardCount) {
+		int[] lows = new int[shardCount];
+		for (int s = 0; s < shardCount; s++) {
+			lows[s] = (int) (Integer.MIN_VALUE + (1L << 32) * s / shardCount);
+		}
+		return lows;
+	}
+
+	public int shardCount() {
+		return shards.length;
+	}
+
+	// the lowest ID of each shard, as of the last rebalance
+	int[] lows() {
+		return partition.lows.clone();
+	}
+
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		return pointRequest(INCREASE, id, delta);
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		return pointRequest(REDUCE, id, delta);
+	}
+
+	public long count(int id) {
+		return pointRequest(COUNT, id, 0);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		checkOpen();
+		if (lo > hi) {
+			return 0;
+		}
+		Request[] mine = requests.get();
+		while (true) {
+			Partition routing = partition;
+			int first = routing.shardOf(lo), last = routing.shardOf(hi);
+			// scatter to every shard the range overlaps, then gather
+			for (int s = first; s <= last; s++) {
+				mine[s - first].prepare(RANGE_SUM, lo, hi, 0, routing);
+				shards[s].submit(mine[s - first]);
+			}
+			boolean stale = false;
+			for (int s = first; s <= last; s++) {
+				mine[s - first].await();
+				stale |= mine[s - first].state == STALE;
+			}
+			if (stale) {
+				continue;
+			}
+			long sum = 0;
+			for (int s = first; s <= last; s++) {
+				sum = Math.addExact(sum, mine[s - first].result());
+			}
+			return sum;
+		}
+	}
+
+	public long nextId(int id) {
+		return neighbourRequest(NEXT, id, 1);
+	}
+
+	public long previousId(int id) {
+		return neighbourRequest(PREVIOUS, id, -1);
+	}
+
+	// routes a single-ID request to its shard, routing it again if the boundaries moved meanwhile
+	private long pointRequest(int kind, int id, long delta) {
+		checkOpen();
+		Request request = requests.get()[0];
+		while (true) {
+			Partition routing = partition;
+			request.prepare(kind, id, 0, delta, routing);
+			shards[routing.shardOf(id)].submit(request);
+			request.await();
+			if (request.state == DONE) {
+				return request.result();
+			}
+		}
+	}
+
+	// asks the shard owning id, then the shards beyond it in direction step, until one has an answer
+	private long neighbourRequest(int kind, int id, int step) {
+		checkOpen();
+		Request request = requests.get()[0];
+		retry: while (true) {
+			Partition routing = partition;
+			for (int s = routing.shardOf(id); s >= 0 && s < shards.length; s += step) {
+				request.prepare(kind, id, 0, 0, routing);
+				shards[s].submit(request);
+				request.await();
+				if (request.state == STALE) {
+					continue retry;
+				}
+				long found = request.result();
+				if (found != NO_ID) {
+					return found;
+				}
+			}
+			return NO_ID;
+		}
+	}
+
+	//
+	// Evens out the shards: repeatedly picks the neighbouring pair with the
+	// largest difference in events, as long as the larger one is skewed, and
+	// moves half the difference across their boundary. Runs on its own after
+	// a shard notices it is skewed; callers may also run it directly.
+	//
+	public void rebalance() {
+		rebalanceLock.lock();
+		try {
+			if (closed) {
+				return; // the workers are gone
+			}
+			for (int pass = 0; pass < 2 * shards.length; pass++) {
+				int donor = -1, recipient = -1, largest = 0;
+				for (int s = 0; s + 1 < shards.length; s++) {
+					int a = shards[s].size, b = shards[s + 1].size;
+					if (Math.abs(a - b) > largest && isSkewed(a >= b ? s : s + 1)) {
+						largest = Math.abs(a - b);
+						donor = a >= b ? s : s + 1;
+						recipient = a >= b ? s + 1 : s;
+					}
+				}
+				if (donor < 0 || largest / 2 < MIN_MOVE) {
+					return;
+				}
+				move(donor, recipient, largest / 2);
+			}
+		} finally {
+			rebalanceLock.unlock();
+		}
+	}
+
+	// true if shard s holds well over the mean number of events
+	private boolean isSkewed(int s) {
+		long total = 0;
+		for (Shard shard : shards) {
+			total += shard.size;
+		}
+		int size = shards[s].size;
+		return size >= 2 * MIN_MOVE && (long) size * 100 * shards.length > SKEW_PERCENT * total;
+	}
+
+	private void requestRebalance() {
+		rebalanceRequested = true;
+		LockSupport.unpark(balancer);
+	}
+
+	// the balancer thread's loop
+	private void balance() {
+		while (!closed) {
+			if (!rebalanceRequested) {
+				LockSupport.park(this);
+				continue;
+			}
+			rebalanceRequested = false;
+			rebalance();
+		}
+	}
+
+	//
+	// Moves the k events of donor closest to recipient (a neighbour) over to
+	// it and shifts the boundary between them. Both shards are paused, so
+	// their trees can be changed from this thread.
+	//
+	private void move(int donor, int recipient, int k) {
+		Shard from = shards[donor], to = shards[recipient];
+		Request[] mine = requests.get();
+		pause(from, mine[0]);
+		pause(to, mine[1]);
+		try {
+			k = Math.min(k, from.tree.size() - 1); // the donor keeps at least one event below its new boundary
+			if (k <= 0) {
+				return;
+			}
+			int[] ids = new int[k];
+			long[] counts = new long[k];
+			RBTree.RangeCursor cursor = from.tree.rangeCursor();
+			if (recipient > donor) {
+				cursor.seekDescending(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			} else {
+				cursor.seek(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			}
+			for (int i = 0; i < k && cursor.next(); i++) {
+				ids[i] = cursor.id();
+				counts[i] = cursor.count();
+			}
+			for (int i = 0; i < k; i++) {
+				from.tree.reduce(ids[i], counts[i]);
+			}
+			to.tree.applyBatch(ids, counts, k);
+			from.size = from.tree.size();
+			to.size = to.tree.size();
+			// ids[k - 1] is the moved event nearest the donor's remaining ones
+			int[] lows = partition.lows.clone();
+			if (recipient > donor) {
+				lows[recipient] = ids[k - 1];
+			} else {
+				lows[donor] = ids[k - 1] + 1;
+			}
+			partition = new Partition(lows);
+		} finally {
+			resume(to);
+			resume(from);
+		}
+	}
+
+	// returns once the shard has finished every request queued before this call
+	private static void pause(Shard shard, Request request) {
+		request.prepare(PAUSE, 0, 0, ++shard.pauses, null);
+		shard.submit(request);
+		request.await();
+	}
+
+	private static void resume(Shard shard) {
+		shard.resumed = shard.pauses;
+		LockSupport.unpark(shard.worker);
+	}
+
+	//
+	// A copy of all events in ID order, e.g. for writing a snapshot. Every
+	// shard is paused while it is taken, so it is a consistent cut.
+	//
+	BulkLoader.SortedEvents events() {
+		checkOpen();
+		rebalanceLock.lock();
+		try {
+			Request[] mine = requests.get();
+			int paused = 0;
+			try {
+				for (; paused < shards.length; paused++) {
+					pause(shards[paused], mine[paused]);
+				}
+				int n = 0;
+				for (Shard shard : shards) {
+					n += shard.tree.size();
+				}
+				int[] ids = new int[n];
+				long[] counts = new long[n];
+				int i = 0;
+				for (Shard shard : shards) {
+					RBTree.RangeCursor cursor = shard.tree.rangeCursor();
+					cursor.seek(Integer.MIN_VALUE, Integer.MAX_VALUE);
+					while (cursor.next()) {
+						ids[i] = cursor.id();
+						counts[i] = cursor.count();
+						i++;
+					}
+				}
+				return new BulkLoader.ArrayEvents(ids, counts, n);
+			} finally {
+				while (paused > 0) {
+					resume(shards[--paused]);
+				}
+			}
+		} finally {
+			rebalanceLock.unlock();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The sharded counter is closed");
+		}
+	}
+
+	// stops the workers and the balancer; the counter must not be used afterwards
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LockSupport.unpark(balancer);
+		// a rebalance in progress still needs the workers
+		rebalanceLock.lock();
+		try {
+			Request request = requests.get()[0];
+			for (Shard shard : shards) {
+				request.prepare(STOP, 0, 0, 0, null);
+				shard.submit(request);
+				request.await();
+			}
+		} finally {
+			rebalanceLock.unlock();
+		}
+		try {
+			for (Shard shard : shards) {
+				shard.worker.join();
+			}
+			balancer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
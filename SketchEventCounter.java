@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+//
+// An approximate event counter whose memory does not grow with the number of
+// distinct IDs, for when a node per ID no longer fits. It is a Count-Min
+// sketch per dyadic level: level l counts the blocks of 2^l consecutive IDs,
+// from single IDs (level 0) up to the whole int range (level 32).
+//   - count reads level 0: the smallest of depth counters the ID hashes to;
+//   - rangeSum adds up the at most two blocks per level that tile [lo, hi];
+//   - nextId/previousId descend from the largest empty blocks to the first
+//     ID whose estimate is positive.
+// Levels with no more blocks than a sketch level has counters keep an exact
+// counter per block instead.
+//
+// Accuracy: with width = e / epsilon counters per row and depth = ln(1 / delta)
+// rows, and N the total of all counts,
+//   - count is never below the true count, and exceeds it by at most
+//     epsilon * N with probability 1 - delta;
+//   - rangeSum is never below the true sum, and each sketched level adds at
+//     most 2 * epsilon * N to the error, with the same probability;
+//   - nextId/previousId never skip an ID with events, but may stop at an ID
+//     that only shares its counters with others.
+// These hold for streams of increases. The sketch cannot tell an ID's own
+// count from that of the IDs sharing its counters, so a reduction of a
+// sketched ID takes off min(delta, smallest counter on its path): no
+// counter goes negative, but whatever exceeds the ID's true count is taken
+// from its neighbours, whose count and rangeSum may then read low by up to
+// that excess.
+//
+// Heavy hitters move to an exact RBTree: once an ID's estimate reaches
+// 2 * epsilon * N (so the error is at most half its count), it enters the
+// tree with that estimate as its count, and every later change is counted
+// exactly there. The estimate stays in the sketch, as only an unknown part
+// of it is the ID's own; rangeSum subtracts it again through a second tree
+// of these base estimates. So a heavy hitter's count is off by at most the
+// error it was promoted with, and never low. A heavy hitter reduced to
+// zero takes its base estimate out of the sketch like a reduction of a
+// sketched ID.
+//
+// Promotion waits until N reaches 1 / epsilon, where the threshold is 2:
+// before that, an ID seen once would qualify, and one-off IDs would fill
+// the tree. The tree holds at most heavyCapacity IDs. When it is full, a
+// candidate whose estimate exceeds the smallest heavy hitter's count takes
+// its place, and that heavy hitter is demoted: its changes since promotion
+// go back into the sketch, which still holds its base. A min-heap on the
+// heavy counts finds the smallest; it is lazy, so increases leave it alone
+// and outdated entries are dropped or refreshed when they reach the top.
+// Memory is fixed when the counter is built; see memoryBytes().
+//
+// Not thread-safe, like RBTree.
+//
+public class SketchEventCounter implements EventCounter {
+
+	static final double DEFAULT_EPSILON = 1e-4;
+	static final double DEFAULT_DELTA = 0.01;
+	static final int DEFAULT_HEAVY_CAPACITY = 1 << 16;
+
+	private static final int LEVELS = 33; // level l has 2^(32 - l) blocks of 2^l IDs
+	private static final int MAX_WIDTH_BITS = 30;
+
+	private final double epsilon;
+	private final int width; // counters per row, a power of two
+	private final int depth; // rows per sketched level
+	private final int shift; // 64 - log2(width): keeps the top bits of a hash
+	private final int exactFrom; // levels from here up have an exact counter per block
+	private final long[][] cells; // cells[level][row * width + column], or cells[level][block]
+	private final long[] seeds; // a multiplier (odd) and an addend per sketched level and row
+	private final RBTree heavy = new RBTree(); // a heavy hitter's base estimate plus its changes since
+	private final RBTree bases = new RBTree(); // the estimate each heavy hitter was promoted with, still in the sketch
+	private final int heavyCapacity;
+	private final long warmup; // the total from which IDs are promoted
+	private final int[] heapIds; // a min-heap on heavy counts, with outdated entries
+	private final long[] heapCounts;
+	private int heapSize;
+	private long total; // sketched and heavy counts
+
+	// an empty counter with the given error bounds and room for heavyCapacity exact IDs
+	public SketchEventCounter(double epsilon, double delta, int heavyCapacity) {
+		if (!(epsilon > 0 && epsilon < 1) || !(delta > 0 && delta < 1) || heavyCapacity < 0) {
+			throw new IllegalArgumentException(
+					"A sketch needs 0 < epsilon, delta < 1: " + epsilon + ", " + delta + ", " + heavyCapacity);
+		}
+		int widthBits = 2;
+		while ((1 << widthBits) < Math.E / epsilon) {
+			if (++widthBits > MAX_WIDTH_BITS) {
+				throw new IllegalArgumentException("epsilon is too small for a sketch: " + epsilon);
+			}
+		}
+		this.epsilon = epsilon;
+		this.width = 1 << widthBits;
+		this.depth = (int) Math.max(1, Math.ceil(Math.log(1 / delta)));
+		this.shift = 64 - widthBits;
+		this.heavyCapacity = heavyCapacity;
+		this.warmup = (long) Math.ceil(1 / epsilon);
+		// room for an outdated entry per heavy hitter before it is rebuilt
+		this.heapIds = new int[2 * heavyCapacity + 1];
+		this.heapCounts = new long[heapIds.length];
+
+		int level = 0;
+		while (32 - level > MAX_WIDTH_BITS || (1L << (32 - level)) > (long) depth * width) {
+			level++;
+		}
+		this.exactFrom = level;
+		this.cells = new long[LEVELS][];
+		for (level = 0; level < LEVELS; level++) {
+			cells[level] = new long[level < exactFrom ? depth * width : 1 << (32 - level)];
+		}
+		// fixed seeds, so that the same input always gives the same estimates
+		SplittableRandom random = new SplittableRandom(0x5EEDC0DEL);
+		this.seeds = new long[2 * exactFrom * depth];
+		for (int i = 0; i < seeds.length; i += 2) {
+			seeds[i] = random.nextLong() | 1;
+			seeds[i + 1] = random.nextLong();
+		}
+	}
+
+	//
+	// Builds a sketch from events sorted by ID. The heaviest heavyCapacity
+	// input events are tracked in a min-heap on the way, and those past the
+	// promotion threshold go straight to the exact tree with their exact
+	// input counts, which leave the sketch, so they have no base estimate.
+	//
+	public static SketchEventCounter fromSorted(BulkLoader.SortedEvents events, double epsilon, double delta,
+			int heavyCapacity) throws IOException {
+		SketchEventCounter sketch = new SketchEventCounter(epsilon, delta, heavyCapacity);
+		int[] topIds = new int[heavyCapacity];
+		long[] topCounts = new long[heavyCapacity];
+		int top = 0;
+		while (events.next()) {
+			int id = events.id();
+			long count = events.count();
+			sketch.total = Math.addExact(sketch.total, count);
+			sketch.add(key(id), count);
+			if (top < heavyCapacity) {
+				topIds[top] = id;
+				topCounts[top] = count;
+				siftUp(topIds, topCounts, top++);
+			} else if (top > 0 && count > topCounts[0]) {
+				topIds[0] = id;
+				topCounts[0] = count;
+				siftDown(topIds, topCounts, 0, top);
+			}
+		}
+		long promoteAt = sketch.promoteAt();
+		int promoted = 0;
+		for (int i = 0; i < top; i++) {
+			if (topCounts[i] >= promoteAt) {
+				sketch.add(key(topIds[i]), -topCounts[i]);
+				topIds[promoted] = topIds[i];
+				topCounts[promoted++] = topCounts[i];
+			}
+		}
+		sketch.heavy.applyBatch(topIds, topCounts, promoted);
+		sketch.rebuildHeap();
+		return sketch;
+	}
+
+	// throws ArithmeticException, leaving the counter untouched, if the total would overflow
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Math.addExact(total, delta);
+		total += delta;
+		if (heavy.count(id) > 0) {
+			return heavy.increase(id, delta);
+		}
+		long u = key(id);
+		add(u, delta);
+		long estimate = estimate(0, u);
+		if (heavyCapacity > 0 && total >= warmup && estimate >= promoteAt() && makeRoom(estimate)) {
+			bases.increase(id, estimate);
+			push(id, estimate);
+			return heavy.increase(id, estimate);
+		}
+		return estimate;
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		long before = heavy.count(id);
+		if (before > 0) {
+			long result = heavy.reduce(id, delta);
+			total -= before - result;
+			if (result == 0) {
+				release(id);
+			} else {
+				push(id, result);
+			}
+			return result;
+		}
+		long u = key(id);
+		long removed = Math.min(delta, pathMinimum(u));
+		if (removed > 0) {
+			add(u, -removed);
+			total -= removed;
+		}
+		return estimate(0, u);
+	}
+
+	public long count(int id) {
+		long exact = heavy.count(id);
+		return exact > 0 ? exact : estimate(0, key(id));
+	}
+
+	public long rangeSum(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		// the sketch still holds the base estimates, so only the changes since count here
+		long sum = heavy.rangeSum(lo, hi) - bases.rangeSum(lo, hi);
+		// the half-open block range [a, b) at each level, shrinking as the ends are taken
+		long a = key(lo), b = key(hi) + 1;
+		for (int level = 0; a < b; level++, a >>>= 1, b >>>= 1) {
+			if ((a & 1) != 0) {
+				sum += estimate(level, a++);
+			}
+			if ((b & 1) != 0) {
+				sum += estimate(level, --b);
+			}
+		}
+		return sum;
+	}
+
+	public long nextId(int id) {
+		long sketched = NO_ID;
+		if (id != Integer.MAX_VALUE) {
+			long u = firstPositive(key(id) + 1);
+			if (u >= 0) {
+				sketched = id(u);
+			}
+		}
+		long exact = heavy.nextId(id);
+		if (sketched == NO_ID) {
+			return exact;
+		}
+		return exact == NO_ID ? sketched : Math.min(sketched, exact);
+	}
+
+	public long previousId(int id) {
+		long sketched = NO_ID;
+		if (id != Integer.MIN_VALUE) {
+			long u = lastPositive(key(id) - 1);
+			if (u >= 0) {
+				sketched = id(u);
+			}
+		}
+		long exact = heavy.previousId(id);
+		if (sketched == NO_ID) {
+			return exact;
+		}
+		return exact == NO_ID ? sketched : Math.max(sketched, exact);
+	}
+
+	// the total of all counts
+	public long total() {
+		return total;
+	}
+
+	// the IDs counted exactly
+	public int heavyHitters() {
+		return heavy.size();
+	}
+
+	// how far count may exceed a sketched ID's true count (with probability 1 - delta)
+	public long countError() {
+		return (long) Math.ceil(Math.E / width * total);
+	}
+
+	// how far rangeSum may exceed the true sum (with probability 1 - delta)
+	public long rangeError() {
+		return 2L * exactFrom * countError();
+	}
+
+	// the bytes of the counters and the heap; the exact trees add up to two nodes per heavy hitter
+	public long memoryBytes() {
+		long counters = 0;
+		for (long[] level : cells) {
+			counters += level.length;
+		}
+		return 8 * (counters + seeds.length) + 12L * heapIds.length;
+	}
+
+	// an estimate at least this large makes an ID a heavy hitter
+	private long promoteAt() {
+		return Math.max(1, (long) Math.ceil(2 * epsilon * total));
+	}
+
+	//
+	// Makes a place in the full tree for an ID with this estimate, by
+	// demoting the smallest heavy hitter if its count is below the estimate.
+	// Outdated heap entries on the way are dropped, or pushed again with the
+	// current count if their ID has grown since.
+	//
+	private boolean makeRoom(long estimate) {
+		if (heavy.size() < heavyCapacity) {
+			return true;
+		}
+		long count;
+		while ((count = heavy.count(heapIds[0])) != heapCounts[0]) {
+			int id = heapIds[0];
+			pop();
+			if (count > 0) {
+				push(id, count);
+			}
+		}
+		if (count >= estimate) {
+			return false;
+		}
+		int id = heapIds[0];
+		pop();
+		demote(id);
+		return true;
+	}
+
+	//
+	// Moves a heavy hitter back into the sketch. The sketch still holds its
+	// base, so only the changes since promotion go in. When they are
+	// negative, that much of the base is provably its own, as its true count
+	// cannot be negative, so taking it out spares the other IDs.
+	//
+	private void demote(int id) {
+		long count = heavy.count(id);
+		long base = bases.count(id);
+		heavy.reduce(id, count);
+		if (base > 0) {
+			bases.reduce(id, base);
+		}
+		add(key(id), count - base);
+	}
+
+	//
+	// Drops the base estimate of a heavy hitter that has just been reduced to
+	// zero. The sketch holds an unknown part of it, at most the base; that
+	// part leaves the sketch the way a reduction of a sketched ID does.
+	//
+	private void release(int id) {
+		long base = bases.count(id);
+		if (base > 0) {
+			bases.reduce(id, base);
+			long u = key(id);
+			add(u, -Math.min(base, pathMinimum(u)));
+		}
+	}
+
+	// adds delta to every counter on the path of u, one block per level
+	private void add(long u, long delta) {
+		for (int level = 0; level < LEVELS; level++, u >>>= 1) {
+			long[] counters = cells[level];
+			if (level >= exactFrom) {
+				counters[(int) u] += delta;
+			} else {
+				for (int row = 0; row < depth; row++) {
+					counters[row * width + column(level, row, u)] += delta;
+				}
+			}
+		}
+	}
+
+	// the estimated total of block number index of level
+	private long estimate(int level, long index) {
+		long[] counters = cells[level];
+		if (level >= exactFrom) {
+			return counters[(int) index];
+		}
+		long min = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			min = Math.min(min, counters[row * width + column(level, row, index)]);
+		}
+		return min;
+	}
+
+	// the smallest counter on the path of u: the tightest upper bound on its count
+	private long pathMinimum(long u) {
+		long min = Long.MAX_VALUE;
+		for (int level = 0; level < LEVELS && min > 0; level++, u >>>= 1) {
+			min = Math.min(min, estimate(level, u));
+		}
+		return min;
+	}
+
+	//
+	// The first u at or after from whose estimate is positive, or -1. Skips
+	// right over empty blocks, climbing to the larger block whenever the next
+	// one starts at a multiple of its size, and descends into positive ones.
+	// A positive block whose children turn out empty (its counters are shared)
+	// only costs the climb back out.
+	//
+	private long firstPositive(long from) {
+		long i = from;
+		int level = 0;
+		while (i < 1L << (32 - level)) {
+			if (estimate(level, i) > 0) {
+				if (level == 0) {
+					return i;
+				}
+				level--;
+				i <<= 1;
+			} else {
+				i++;
+				while ((i & 1) == 0 && level < 32) {
+					i >>= 1;
+					level++;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// the last u at or before to whose estimate is positive, or -1; firstPositive mirrored
+	private long lastPositive(long to) {
+		long i = to;
+		int level = 0;
+		while (i >= 0) {
+			if (estimate(level, i) > 0) {
+				if (level == 0) {
+					return i;
+				}
+				level--;
+				i = i << 1 | 1;
+			} else {
+				i--;
+				while ((i & 1) != 0 && level < 32) {
+					i >>= 1;
+					level++;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// multiply-add-shift hashing, a fresh function per level and row
+	private int column(int level, int row, long index) {
+		int s = 2 * (level * depth + row);
+		return (int) ((seeds[s] * index + seeds[s + 1]) >>> shift);
+	}
+
+	// IDs as unsigned offsets from Integer.MIN_VALUE, so that blocks follow ID order
+	private static long key(int id) {
+		return (id & 0xFFFFFFFFL) ^ 0x80000000L;
+	}
+
+	private static long id(long u) {
+		return (int) (u ^ 0x80000000L);
+	}
+
+	private void push(int id, long count) {
+		if (heapSize == heapIds.length) {
+			rebuildHeap();
+		}
+		heapIds[heapSize] = id;
+		heapCounts[heapSize] = count;
+		siftUp(heapIds, heapCounts, heapSize++);
+	}
+
+	private void pop() {
+		heapSize--;
+		heapIds[0] = heapIds[heapSize];
+		heapCounts[0] = heapCounts[heapSize];
+		siftDown(heapIds, heapCounts, 0, heapSize);
+	}
+
+	// the heap with one current entry per heavy hitter and nothing outdated
+	private void rebuildHeap() {
+		heapSize = 0;
+		heavy.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE, (id, count) -> {
+			heapIds[heapSize] = id;
+			heapCounts[heapSize++] = count;
+		});
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(heapIds, heapCounts, i, heapSize);
+		}
+	}
+
+	// min-heap on counts, for the heaviest input events and the smallest heavy hitter
+	private static void siftUp(int[] ids, long[] counts, int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (counts[parent] <= counts[i]) {
+				return;
+			}
+			swap(ids, counts, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] ids, long[] counts, int i, int n) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				return;
+			}
+			if (child + 1 < n && counts[child + 1] < counts[child]) {
+				child++;
+			}
+			if (counts[i] <= counts[child]) {
+				return;
+			}
+			swap(ids, counts, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(int[] ids, long[] counts, int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		long count = counts[i];
+		counts[i] = counts[j];
+		counts[j] = count;
+	}
+}
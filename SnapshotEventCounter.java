@@ -0,0 +1,317 @@
+//
+// An event counter whose readers never wait. The counter is a persistent
+// (path-copying) balanced search tree: nodes are immutable, and every
+// increase/reduce copies only the O(log n) nodes on the path to the changed
+// event and then publishes the new root with a single volatile write.
+//
+// A reader takes the current root once and works on that version for as long
+// as it likes; snapshot() hands such a version out explicitly, so a long range
+// report sees one consistent state while ingestion continues. Versions that no
+// reader holds any more become unreachable and are reclaimed by the garbage
+// collector.
+//
+// Path copying needs a tree whose rebalancing only touches the search path, so
+// the nodes are AVL-balanced rather than red-black; the bounds are the same.
+//
+public class SnapshotEventCounter implements EventCounter {
+
+	static final class Node {
+		final int id;
+		final long count;
+		final long sum; // summation of the counts in the subtree rooted at this node
+		final Node left, right;
+		final int height;
+
+		Node(int id, long count, Node left, Node right) {
+			this.id = id;
+			this.count = count;
+			this.left = left;
+			this.right = right;
+			this.sum = count + sum(left) + sum(right);
+			this.height = 1 + Math.max(height(left), height(right));
+		}
+	}
+
+	//
+	// An immutable view of the counter at one point in time.
+	//
+	public static final class Snapshot implements EventQueries {
+		private final Node root;
+
+		Snapshot(Node root) {
+			this.root = root;
+		}
+
+		public long count(int id) {
+			return SnapshotEventCounter.count(root, id);
+		}
+
+		public long rangeSum(int lo, int hi) {
+			return SnapshotEventCounter.rangeSum(root, lo, hi);
+		}
+
+		public long nextId(int id) {
+			return SnapshotEventCounter.nextId(root, id);
+		}
+
+		public long previousId(int id) {
+			return SnapshotEventCounter.previousId(root, id);
+		}
+
+		//
+		// The events of this version in ID order. Nodes do not know their
+		// subtree sizes, so the first call to size() counts them with a walk of
+		// its own; both walks can run on any thread, long after the version was
+		// taken.
+		//
+		public BulkLoader.SortedEvents events() {
+			return new BulkLoader.SortedEvents() {
+				private final Node[] path = new Node[height(root)]; // the ancestors still to visit
+				private int depth = pushLeftSpine(root, path, 0);
+				private Node current;
+				private int size = -1;
+
+				public int size() {
+					if (size < 0) {
+						size = 0;
+						Node[] stack = new Node[height(root)];
+						for (int d = pushLeftSpine(root, stack, 0); d > 0;) {
+							Node node = stack[--d];
+							d = pushLeftSpine(node.right, stack, d);
+							size++;
+						}
+					}
+					return size;
+				}
+
+				public boolean next() {
+					if (depth == 0) {
+						return false;
+					}
+					current = path[--depth];
+					depth = pushLeftSpine(current.right, path, depth);
+					return true;
+				}
+
+				public int id() {
+					return current.id;
+				}
+
+				public long count() {
+					return current.count;
+				}
+			};
+		}
+	}
+
+	private volatile Node root;
+	private final Object writeLock = new Object(); // serializes writers only
+	private long lastCount; // result of the last write, guarded by writeLock
+
+	public SnapshotEventCounter() {
+	}
+
+	// builds a balanced counter from n events that are sorted by ID with unique IDs
+	public static SnapshotEventCounter fromSorted(int[] sortedIds, long[] sortedCounts, int n) {
+		SnapshotEventCounter counter = new SnapshotEventCounter();
+		counter.root = build(sortedIds, sortedCounts, 0, n - 1);
+		return counter;
+	}
+
+	private static Node build(int[] ids, long[] counts, int start, int end) {
+		if (start > end) {
+			return null;
+		}
+		int mid = start + (end - start) / 2;
+		return new Node(ids[mid], counts[mid], build(ids, counts, start, mid - 1), build(ids, counts, mid + 1, end));
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(root);
+	}
+
+	// throws ArithmeticException, leaving the counter untouched, if the total would overflow
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		synchronized (writeLock) {
+			Math.addExact(sum(root), delta);
+			root = increase(root, id, delta);
+			return lastCount;
+		}
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		synchronized (writeLock) {
+			lastCount = 0;
+			root = reduce(root, id, delta);
+			return lastCount;
+		}
+	}
+
+	public long count(int id) {
+		return count(root, id);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		return rangeSum(root, lo, hi);
+	}
+
+	public long nextId(int id) {
+		return nextId(root, id);
+	}
+
+	public long previousId(int id) {
+		return previousId(root, id);
+	}
+
+	private Node increase(Node node, int id, long delta) {
+		if (node == null) {
+			lastCount = delta;
+			return new Node(id, delta, null, null);
+		}
+		if (id < node.id) {
+			return balance(node.id, node.count, increase(node.left, id, delta), node.right);
+		} else if (id > node.id) {
+			return balance(node.id, node.count, node.left, increase(node.right, id, delta));
+		}
+		lastCount = node.count + delta;
+		return new Node(id, lastCount, node.left, node.right);
+	}
+
+	private Node reduce(Node node, int id, long delta) {
+		if (node == null) {
+			return null;
+		}
+		if (id < node.id) {
+			Node left = reduce(node.left, id, delta);
+			return left == node.left ? node : balance(node.id, node.count, left, node.right);
+		} else if (id > node.id) {
+			Node right = reduce(node.right, id, delta);
+			return right == node.right ? node : balance(node.id, node.count, node.left, right);
+		}
+		if (node.count > delta) {
+			lastCount = node.count - delta;
+			return new Node(id, lastCount, node.left, node.right);
+		}
+		// the count drops to zero or below: remove the event
+		if (node.left == null) {
+			return node.right;
+		} else if (node.right == null) {
+			return node.left;
+		}
+		Node successor = node.right;
+		while (successor.left != null) {
+			successor = successor.left;
+		}
+		return balance(successor.id, successor.count, node.left, removeMinimum(node.right));
+	}
+
+	private static Node removeMinimum(Node node) {
+		if (node.left == null) {
+			return node.right;
+		}
+		return balance(node.id, node.count, removeMinimum(node.left), node.right);
+	}
+
+	// creates a node, restoring the AVL balance with at most two rotations
+	private static Node balance(int id, long count, Node left, Node right) {
+		int leftHeight = height(left), rightHeight = height(right);
+		if (leftHeight > rightHeight + 1) {
+			if (height(left.left) >= height(left.right)) {
+				return new Node(left.id, left.count, left.left, new Node(id, count, left.right, right));
+			}
+			Node pivot = left.right;
+			return new Node(pivot.id, pivot.count, new Node(left.id, left.count, left.left, pivot.left),
+					new Node(id, count, pivot.right, right));
+		} else if (rightHeight > leftHeight + 1) {
+			if (height(right.right) >= height(right.left)) {
+				return new Node(right.id, right.count, new Node(id, count, left, right.left), right.right);
+			}
+			Node pivot = right.left;
+			return new Node(pivot.id, pivot.count, new Node(id, count, left, pivot.left),
+					new Node(right.id, right.count, pivot.right, right.right));
+		}
+		return new Node(id, count, left, right);
+	}
+
+	private static long count(Node node, int id) {
+		while (node != null) {
+			if (id < node.id) {
+				node = node.left;
+			} else if (id > node.id) {
+				node = node.right;
+			} else {
+				return node.count;
+			}
+		}
+		return 0;
+	}
+
+	private static long rangeSum(Node root, int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		// total of the IDs <= hi minus total of the IDs < lo
+		long total = 0;
+		for (Node node = root; node != null;) {
+			if (node.id <= hi) {
+				total += sum(node.left) + node.count;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		for (Node node = root; node != null;) {
+			if (node.id < lo) {
+				total -= sum(node.left) + node.count;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return total;
+	}
+
+	private static long nextId(Node node, int id) {
+		Node bestFit = null;
+		while (node != null) {
+			if (id < node.id) {
+				bestFit = node;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return bestFit == null ? NO_ID : bestFit.id;
+	}
+
+	private static long previousId(Node node, int id) {
+		Node bestFit = null;
+		while (node != null) {
+			if (id > node.id) {
+				bestFit = node;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return bestFit == null ? NO_ID : bestFit.id;
+	}
+
+	// pushes node and its chain of left children; returns the new depth
+	private static int pushLeftSpine(Node node, Node[] stack, int depth) {
+		for (; node != null; node = node.left) {
+			stack[depth++] = node;
+		}
+		return depth;
+	}
+
+	private static long sum(Node node) {
+		return node == null ? 0 : node.sum;
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+//
+// An EventSnapshot plus the changes made since, kept in a TreeMap from each
+// changed ID to its current count (0 once removed). Queries merge the two;
+// the snapshot itself is never written. Meant for a small number of changed
+// IDs: RestoredEventCounter answers from one while its engine is built, and
+// LoggedEventCounter replays the log into one to compact it into the next
+// snapshot.
+//
+// Like an engine, it throws ArithmeticException, changing nothing, if a
+// count or the total would overflow.
+//
+class SnapshotOverlay implements EventCounter {
+
+	// the count of a changed ID now, and in the snapshot
+	private static final class Change {
+		final long base;
+		long count;
+
+		Change(long base) {
+			this.base = base;
+			this.count = base;
+		}
+	}
+
+	private final EventSnapshot snapshot;
+	private final TreeMap<Integer, Change> changes = new TreeMap<>();
+	private long total;
+	private int size;
+
+	SnapshotOverlay(EventSnapshot snapshot) {
+		this.snapshot = snapshot;
+		this.total = snapshot.rangeSum(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		this.size = snapshot.size();
+	}
+
+	// the number of IDs changed since the snapshot
+	int changedIds() {
+		return changes.size();
+	}
+
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Change change = change(id);
+		long count = Math.addExact(change.count, delta);
+		total = Math.addExact(total, delta);
+		if (change.count == 0) {
+			size++;
+		}
+		change.count = count;
+		return count;
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		if (count(id) == 0) {
+			return 0; // nothing to remember
+		}
+		Change change = change(id);
+		long count = change.count <= delta ? 0 : change.count - delta;
+		total -= change.count - count;
+		if (count == 0 && change.count > 0) {
+			size--;
+		}
+		change.count = count;
+		return count;
+	}
+
+	public long count(int id) {
+		Change change = changes.get(id);
+		return change != null ? change.count : snapshot.count(id);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		long sum = snapshot.rangeSum(lo, hi);
+		if (lo <= hi) {
+			for (Change change : changes.subMap(lo, true, hi, true).values()) {
+				sum += change.count - change.base;
+			}
+		}
+		return sum;
+	}
+
+	public long nextId(int id) {
+		// the snapshot's next ID that was not removed, unless a change added one before it
+		long next = snapshot.nextId(id);
+		while (next != NO_ID && isRemoved((int) next)) {
+			next = next == Integer.MAX_VALUE ? NO_ID : snapshot.nextId((int) next);
+		}
+		for (Map.Entry<Integer, Change> entry : changes.tailMap(id, false).entrySet()) {
+			if (next != NO_ID && entry.getKey() >= next) {
+				break;
+			}
+			if (entry.getValue().count > 0) {
+				return entry.getKey();
+			}
+		}
+		return next;
+	}
+
+	public long previousId(int id) {
+		long previous = snapshot.previousId(id);
+		while (previous != NO_ID && isRemoved((int) previous)) {
+			previous = previous == Integer.MIN_VALUE ? NO_ID : snapshot.previousId((int) previous);
+		}
+		for (Map.Entry<Integer, Change> entry : changes.headMap(id, false).descendingMap().entrySet()) {
+			if (previous != NO_ID && entry.getKey() <= previous) {
+				break;
+			}
+			if (entry.getValue().count > 0) {
+				return entry.getKey();
+			}
+		}
+		return previous;
+	}
+
+	// makes the same changes to counter, which must hold the snapshot's events
+	void applyTo(EventCounter counter) {
+		for (Map.Entry<Integer, Change> entry : changes.entrySet()) {
+			Change change = entry.getValue();
+			if (change.count > change.base) {
+				counter.increase(entry.getKey(), change.count - change.base);
+			} else if (change.count < change.base) {
+				counter.reduce(entry.getKey(), change.base - change.count);
+			}
+		}
+	}
+
+	// the merged events in ID order, in one pass over the snapshot and the changes
+	BulkLoader.SortedEvents events() {
+		BulkLoader.SortedEvents base = snapshot.events();
+		Iterator<Map.Entry<Integer, Change>> changed = changes.entrySet().iterator();
+		return new BulkLoader.SortedEvents() {
+			private boolean started;
+			private boolean baseValid;
+			private Map.Entry<Integer, Change> change;
+			private int id;
+			private long count;
+
+			public int size() {
+				return size;
+			}
+
+			public boolean next() throws IOException {
+				if (!started) {
+					started = true;
+					baseValid = base.next();
+					change = changed.hasNext() ? changed.next() : null;
+				}
+				while (baseValid || change != null) {
+					if (change == null || baseValid && base.id() < change.getKey()) {
+						id = base.id();
+						count = base.count();
+						baseValid = base.next();
+					} else {
+						if (baseValid && base.id() == change.getKey()) {
+							baseValid = base.next();
+						}
+						id = change.getKey();
+						count = change.getValue().count;
+						change = changed.hasNext() ? changed.next() : null;
+					}
+					if (count > 0) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			public int id() {
+				return id;
+			}
+
+			public long count() {
+				return count;
+			}
+		};
+	}
+
+	private Change change(int id) {
+		Change change = changes.get(id);
+		if (change == null) {
+			change = new Change(snapshot.count(id));
+			changes.put(id, change);
+		}
+		return change;
+	}
+
+	private boolean isRemoved(int id) {
+		Change change = changes.get(id);
+		return change != null && change.count == 0;
+	}
+}
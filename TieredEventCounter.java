@@ -0,0 +1,493 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//
+// An event counter for data that is loaded once and then mostly read. The
+// loaded events go to a cold tier of immutable compressed blocks, BLOCK
+// events each:
+//   - per event, the ID as a varint delta from the previous one and the count
+//     as a varint, so a dense run of small counts costs about two bytes;
+//   - per block, its first ID (to find it by binary search) and its count
+//     sum in a Fenwick tree, so inRange adds whole blocks without decoding
+//     them and decodes at most the two blocks at its ends.
+// The first change to a cold event moves it to the hot tier, an RBTree: its
+// bit in the cold mask is set, its count leaves the block sum, and the tree
+// takes it over with the change applied. New IDs go straight to the tree.
+// Reads never move anything. An ID in the tree masks its cold entry, so
+// every lookup asks the tree whether it holds the ID (contains), not whether
+// its count there is positive.
+//
+// Once the hot tier grows to a fraction of the cold one, compact() freezes
+// both back into fresh blocks, so the cost is amortized over the changes
+// that filled the tree.
+//
+// Not thread-safe, like RBTree.
+//
+public class TieredEventCounter implements EventCounter {
+
+	static final int BLOCK = 128; // events per cold block, except the last
+	private static final int PAGE_SIZE = 1 << 20; // blocks never straddle pages
+	private static final int MAX_BLOCK_BYTES = BLOCK * (5 + 10); // varint ID delta and count
+	// compaction starts once the hot tier holds this many events and 1/COMPACT_RATIO of the cold ones
+	private static final int MIN_COMPACT = 1 << 16;
+	private static final int COMPACT_RATIO = 8;
+
+	// the cold tier
+	private byte[][] pages;
+	private int blocks;
+	private int lastBlockSize;
+	private int[] firstIds;
+	private int[] pageOf; // the page and offset of each block's bytes
+	private int[] offsetOf;
+	private long[] fenwick; // 1-based over the blocks: fenwick[i] sums the blocks (i - lowbit(i), i]
+	private long[] masked; // a bit per cold event (block * BLOCK + position) that has moved or gone
+	private short[] live; // unmasked events per block
+	private DenseEventCounter.OccupancyBitmap occupied; // the blocks with live events
+	private int coldSize; // unmasked cold events
+
+	private final RBTree hot = new RBTree();
+	private final BlockReader reader = new BlockReader();
+	private long total;
+
+	// an empty counter; everything goes to the hot tier until the first compaction
+	public TieredEventCounter() {
+		try {
+			freeze(new BulkLoader.ArrayEvents(new int[0], new long[0], 0));
+		} catch (IOException e) {
+			throw new AssertionError(e); // the events are in memory
+		}
+	}
+
+	// builds a counter whose cold tier holds events, sorted by ID
+	public static TieredEventCounter fromSorted(BulkLoader.SortedEvents events) throws IOException {
+		TieredEventCounter counter = new TieredEventCounter();
+		counter.total = counter.freeze(events);
+		return counter;
+	}
+
+	// the number of events, in both tiers
+	public int size() {
+		return coldSize + hot.size();
+	}
+
+	// the events in the RBTree tier
+	public int hotSize() {
+		return hot.size();
+	}
+
+	// the bytes held by the cold tier
+	public long coldBytes() {
+		long bytes = 0;
+		for (byte[] page : pages) {
+			bytes += page.length;
+		}
+		// first ID, page, offset, Fenwick entry, live count and mask words per block
+		return bytes + (long) blocks * (4 + 4 + 4 + 8 + 2 + 8 * (BLOCK / 64));
+	}
+
+	// throws ArithmeticException, leaving the counter untouched, if the total would overflow
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		Math.addExact(total, delta);
+		total += delta;
+		long result = hot.contains(id) ? hot.increase(id, delta) : hot.increase(id, takeCold(id) + delta);
+		if (hot.size() >= MIN_COMPACT && hot.size() >= coldSize / COMPACT_RATIO) {
+			compact();
+		}
+		return result;
+	}
+
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		if (hot.contains(id)) {
+			long before = hot.count(id);
+			long result = hot.reduce(id, delta);
+			total -= before - result;
+			return result;
+		}
+		long cold = takeCold(id);
+		if (cold == 0) {
+			return 0;
+		}
+		if (delta >= cold) {
+			total -= cold;
+			return 0;
+		}
+		total -= delta;
+		return hot.increase(id, cold - delta);
+	}
+
+	public long count(int id) {
+		if (hot.contains(id)) {
+			return hot.count(id);
+		}
+		int block = blockOf(id);
+		if (block < 0) {
+			return 0;
+		}
+		reader.open(block);
+		while (reader.next()) {
+			if (reader.id == id) {
+				return reader.live() ? reader.count : 0;
+			}
+			if (reader.id > id) {
+				break;
+			}
+		}
+		return 0;
+	}
+
+	public long rangeSum(int lo, int hi) {
+		if (lo > hi) {
+			return 0;
+		}
+		long sum = hot.rangeSum(lo, hi);
+		int first = blockOf(lo), last = blockOf(hi);
+		if (last < 0) {
+			return sum;
+		}
+		if (first == last) {
+			return sum + partialSum(first, lo, hi);
+		}
+		if (first >= 0) {
+			sum += partialSum(first, lo, hi);
+		}
+		// the blocks strictly between the ends lie wholly in the range
+		return sum + prefixSum(last) - prefixSum(first + 1) + partialSum(last, lo, hi);
+	}
+
+	public long nextId(int id) {
+		long cold = coldNext(id);
+		long other = hot.nextId(id);
+		if (cold == NO_ID) {
+			return other;
+		}
+		return other == NO_ID ? cold : Math.min(cold, other);
+	}
+
+	public long previousId(int id) {
+		long cold = coldPrevious(id);
+		long other = hot.previousId(id);
+		if (cold == NO_ID) {
+			return other;
+		}
+		return other == NO_ID ? cold : Math.max(cold, other);
+	}
+
+	// merges the hot tier back into fresh cold blocks
+	public void compact() {
+		try {
+			freeze(events());
+		} catch (IOException e) {
+			throw new AssertionError(e); // both tiers are in memory
+		}
+		hot.clear();
+	}
+
+	// the events of both tiers in ID order
+	BulkLoader.SortedEvents events() {
+		BulkLoader.SortedEvents others = hot.events();
+		int n = size();
+		return new BulkLoader.SortedEvents() {
+			private final BlockReader cold = new BlockReader();
+			private int block = occupied.nextSetBit(0);
+			private boolean coldPending = false; // cold is positioned on an unread live event
+			private boolean othersPending = false;
+			private boolean othersDone = false;
+			private boolean fromCold;
+
+			{
+				if (block >= 0) {
+					cold.open(block);
+				}
+			}
+
+			public int size() {
+				return n;
+			}
+
+			public boolean next() throws IOException {
+				if (!othersPending && !othersDone) {
+					othersPending = others.next();
+					othersDone = !othersPending;
+				}
+				while (!coldPending && block >= 0) {
+					if (!cold.next()) {
+						block = block + 1 < blocks ? occupied.nextSetBit(block + 1) : -1;
+						if (block >= 0) {
+							cold.open(block);
+						}
+					} else {
+						coldPending = cold.live();
+					}
+				}
+				if (coldPending && (!othersPending || cold.id < others.id())) {
+					fromCold = true;
+					coldPending = false;
+					return true;
+				}
+				if (othersPending) {
+					fromCold = false;
+					othersPending = false;
+					return true;
+				}
+				return false;
+			}
+
+			public int id() {
+				return fromCold ? cold.id : others.id();
+			}
+
+			public long count() {
+				return fromCold ? cold.count : others.count();
+			}
+		};
+	}
+
+	//
+	// Replaces the cold tier with events, sorted by ID, and returns their
+	// total. Reads all of events before touching any field, so the events
+	// may come from this counter.
+	//
+	private long freeze(BulkLoader.SortedEvents events) throws IOException {
+		int n = events.size();
+		int newBlocks = (n + BLOCK - 1) / BLOCK;
+		int[] newFirstIds = new int[newBlocks];
+		int[] newPageOf = new int[newBlocks];
+		int[] newOffsetOf = new int[newBlocks];
+		long[] newFenwick = new long[newBlocks + 1];
+		short[] newLive = new short[newBlocks];
+		List<byte[]> newPages = new ArrayList<>();
+		byte[] page = new byte[PAGE_SIZE];
+		int offset = 0;
+		long sum = 0;
+		int previous = 0;
+		for (int i = 0; events.next(); i++) {
+			int block = i / BLOCK;
+			int id = events.id();
+			long count = events.count();
+			if (i % BLOCK == 0) {
+				if (PAGE_SIZE - offset < MAX_BLOCK_BYTES) {
+					newPages.add(Arrays.copyOf(page, offset));
+					page = new byte[PAGE_SIZE];
+					offset = 0;
+				}
+				newFirstIds[block] = id;
+				newPageOf[block] = newPages.size();
+				newOffsetOf[block] = offset;
+				previous = id;
+			}
+			offset = writeVarint(page, offset, (id - previous) & 0xFFFFFFFFL);
+			offset = writeVarint(page, offset, count);
+			previous = id;
+			newFenwick[block + 1] += count;
+			newLive[block]++;
+			sum = Math.addExact(sum, count);
+		}
+		newPages.add(Arrays.copyOf(page, offset));
+		for (int i = 1; i <= newBlocks; i++) {
+			int parent = i + (i & -i);
+			if (parent <= newBlocks) {
+				newFenwick[parent] += newFenwick[i];
+			}
+		}
+		DenseEventCounter.OccupancyBitmap newOccupied = new DenseEventCounter.OccupancyBitmap(newBlocks);
+		for (int block = 0; block < newBlocks; block++) {
+			newOccupied.set(block);
+		}
+
+		pages = newPages.toArray(new byte[0][]);
+		blocks = newBlocks;
+		lastBlockSize = n - (newBlocks - 1) * BLOCK;
+		firstIds = newFirstIds;
+		pageOf = newPageOf;
+		offsetOf = newOffsetOf;
+		fenwick = newFenwick;
+		masked = new long[(int) (((long) newBlocks * BLOCK + 63) >>> 6)];
+		live = newLive;
+		occupied = newOccupied;
+		coldSize = n;
+		return sum;
+	}
+
+	// masks the cold event of id and returns its count, or 0 if it has none
+	private long takeCold(int id) {
+		int block = blockOf(id);
+		if (block < 0) {
+			return 0;
+		}
+		reader.open(block);
+		while (reader.next()) {
+			if (reader.id == id) {
+				if (!reader.live()) {
+					return 0;
+				}
+				long bit = (long) block * BLOCK + reader.position;
+				masked[(int) (bit >>> 6)] |= 1L << bit;
+				for (int i = block + 1; i <= blocks; i += i & -i) {
+					fenwick[i] -= reader.count;
+				}
+				if (--live[block] == 0) {
+					occupied.clear(block);
+				}
+				coldSize--;
+				return reader.count;
+			}
+			if (reader.id > id) {
+				break;
+			}
+		}
+		return 0;
+	}
+
+	// the smallest live cold ID greater than id, or NO_ID
+	private long coldNext(int id) {
+		int block = Math.max(blockOf(id), 0);
+		if (block >= blocks) {
+			return NO_ID;
+		}
+		reader.open(block);
+		while (reader.next()) {
+			if (reader.id > id && reader.live()) {
+				return reader.id;
+			}
+		}
+		block = block + 1 < blocks ? occupied.nextSetBit(block + 1) : -1;
+		if (block < 0) {
+			return NO_ID;
+		}
+		reader.open(block);
+		while (reader.next()) {
+			if (reader.live()) {
+				return reader.id;
+			}
+		}
+		throw new IllegalStateException("Block " + block + " is marked occupied but has no live events");
+	}
+
+	// the largest live cold ID smaller than id, or NO_ID
+	private long coldPrevious(int id) {
+		if (id == Integer.MIN_VALUE) {
+			return NO_ID;
+		}
+		int block = blockOf(id - 1);
+		if (block < 0) {
+			return NO_ID;
+		}
+		long found = NO_ID;
+		reader.open(block);
+		while (reader.next() && reader.id < id) {
+			if (reader.live()) {
+				found = reader.id;
+			}
+		}
+		if (found != NO_ID) {
+			return found;
+		}
+		block = block > 0 ? occupied.previousSetBit(block - 1) : -1;
+		if (block < 0) {
+			return NO_ID;
+		}
+		reader.open(block);
+		while (reader.next()) {
+			if (reader.live()) {
+				found = reader.id;
+			}
+		}
+		return found;
+	}
+
+	// the live cold counts of block with IDs in [lo, hi]
+	private long partialSum(int block, int lo, int hi) {
+		long sum = 0;
+		reader.open(block);
+		while (reader.next() && reader.id <= hi) {
+			if (reader.id >= lo && reader.live()) {
+				sum += reader.count;
+			}
+		}
+		return sum;
+	}
+
+	// the total of the first n blocks
+	private long prefixSum(int n) {
+		long sum = 0;
+		for (int i = n; i > 0; i -= i & -i) {
+			sum += fenwick[i];
+		}
+		return sum;
+	}
+
+	// the last block whose first ID is at most id, or -1
+	private int blockOf(int id) {
+		int lo = 0, hi = blocks - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (firstIds[mid] <= id) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+
+	private static int writeVarint(byte[] page, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			page[offset++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		page[offset++] = (byte) value;
+		return offset;
+	}
+
+	// decodes the events of one block in order
+	private final class BlockReader {
+		private byte[] page;
+		private int offset;
+		private int remaining;
+		private int block;
+		int position; // of the current event within the block
+		int id;
+		long count;
+
+		void open(int block) {
+			this.block = block;
+			page = pages[pageOf[block]];
+			offset = offsetOf[block];
+			remaining = block == blocks - 1 ? lastBlockSize : BLOCK;
+			position = -1;
+			id = firstIds[block];
+		}
+
+		boolean next() {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			position++;
+			id += (int) readVarint();
+			count = readVarint();
+			return true;
+		}
+
+		// whether the current event is still in the cold tier
+		boolean live() {
+			long bit = (long) block * BLOCK + position;
+			return (masked[(int) (bit >>> 6)] & (1L << bit)) == 0;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = page[offset++];
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+	}
+}
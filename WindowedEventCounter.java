@@ -0,0 +1,170 @@
+import java.util.function.LongSupplier;
+
+//
+// Counts only the events of a recent time window, e.g. "events for ID x in
+// the last 5 minutes". Time is cut into buckets of bucketMillis, and the
+// window is the current bucket plus the buckets - 1 before it:
+//   - sliding(window, buckets): the window moves forward a bucket at a time;
+//   - tumbling(window): a single bucket, so the counts start over from zero
+//     at the start of every window.
+//
+// Every bucket has its own RBTree of the events added while it was current,
+// and one more RBTree holds their sum, so count, rangeSum, nextId and
+// previousId are plain queries on that aggregate. When time moves past a
+// bucket, its events are taken off the aggregate one by one and the bucket
+// is cleared for reuse. Each event is added and expired once, so the cost
+// stays amortized O(log n) per increase, without ever rebuilding the
+// aggregate. Memory is bounded by the distinct IDs seen within the window,
+// once per bucket they appear in.
+//
+// Time is read from the clock on every call, and can also be moved forward
+// explicitly with advance(). Not thread-safe, like RBTree.
+//
+public class WindowedEventCounter implements EventCounter {
+
+	private final long bucketMillis;
+	private final RBTree[] ring; // bucket b lives in ring[b % ring.length]
+	private final RBTree window = new RBTree(); // the sum of every live bucket
+	private final LongSupplier clock;
+	private long current; // the number of the current bucket, time / bucketMillis
+
+	//
+	// A window of windowMillis, cut into the given number of buckets, read
+	// against clock (in milliseconds). windowMillis must be a multiple of
+	// buckets.
+	//
+	public WindowedEventCounter(long windowMillis, int buckets, LongSupplier clock) {
+		if (buckets < 1 || windowMillis < buckets || windowMillis % buckets != 0) {
+			throw new IllegalArgumentException(
+					"The window must be a positive multiple of the bucket count: " + windowMillis + " / " + buckets);
+		}
+		this.bucketMillis = windowMillis / buckets;
+		this.ring = new RBTree[buckets];
+		for (int b = 0; b < buckets; b++) {
+			ring[b] = buckets == 1 ? window : new RBTree(); // a single bucket is the window itself
+		}
+		this.clock = clock;
+		this.current = Math.floorDiv(clock.getAsLong(), bucketMillis);
+	}
+
+	// the events of the last windowMillis, moving forward one bucket at a time
+	public static WindowedEventCounter sliding(long windowMillis, int buckets) {
+		return new WindowedEventCounter(windowMillis, buckets, System::currentTimeMillis);
+	}
+
+	// the events since the start of the current windowMillis period
+	public static WindowedEventCounter tumbling(long windowMillis) {
+		return new WindowedEventCounter(windowMillis, 1, System::currentTimeMillis);
+	}
+
+	public long increase(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		advance();
+		// the window holds the most, so once it has taken the delta no bucket can overflow
+		long result = window.increase(id, delta);
+		if (ring.length > 1) {
+			bucket(current).increase(id, delta);
+		}
+		return result;
+	}
+
+	//
+	// Takes delta off the count of id in the window, from the oldest events
+	// first (those would expire first anyway). Costs a lookup in every bucket
+	// until delta is used up.
+	//
+	public long reduce(int id, long delta) {
+		EventCounter.checkDelta(delta);
+		advance();
+		if (ring.length == 1) {
+			return window.reduce(id, delta);
+		}
+		long left = Math.min(delta, window.count(id));
+		for (long b = current - ring.length + 1; b <= current && left > 0; b++) {
+			RBTree bucket = bucket(b);
+			long taken = Math.min(left, bucket.count(id));
+			if (taken > 0) {
+				bucket.reduce(id, taken);
+				window.reduce(id, taken);
+				left -= taken;
+			}
+		}
+		return window.count(id);
+	}
+
+	public long count(int id) {
+		advance();
+		return window.count(id);
+	}
+
+	public long rangeSum(int lo, int hi) {
+		advance();
+		return window.rangeSum(lo, hi);
+	}
+
+	public long nextId(int id) {
+		advance();
+		return window.nextId(id);
+	}
+
+	public long previousId(int id) {
+		advance();
+		return window.previousId(id);
+	}
+
+	// the number of IDs with events in the window
+	public int size() {
+		advance();
+		return window.size();
+	}
+
+	public long bucketMillis() {
+		return bucketMillis;
+	}
+
+	// expires the buckets the clock has moved past
+	public void advance() {
+		advance(clock.getAsLong());
+	}
+
+	//
+	// Expires every bucket that ends at or before nowMillis. Time never moves
+	// back: an earlier nowMillis changes nothing.
+	//
+	public void advance(long nowMillis) {
+		long target = Math.floorDiv(nowMillis, bucketMillis);
+		if (target <= current) {
+			return;
+		}
+		if (target - current >= ring.length) {
+			// the whole window has passed: nothing in it survives
+			window.clear();
+			for (RBTree bucket : ring) {
+				bucket.clear();
+			}
+		} else {
+			for (long b = current + 1; b <= target; b++) {
+				expire(bucket(b)); // bucket b reuses the slot of the oldest bucket
+			}
+		}
+		current = target;
+	}
+
+	// takes a bucket's events off the window and empties it
+	private void expire(RBTree bucket) {
+		if (bucket == window) {
+			window.clear();
+			return;
+		}
+		RBTree.RangeCursor cursor = bucket.rangeCursor();
+		cursor.seek(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		while (cursor.next()) {
+			window.reduce(cursor.id(), cursor.count());
+		}
+		bucket.clear();
+	}
+
+	private RBTree bucket(long b) {
+		return ring[(int) Math.floorMod(b, (long) ring.length)];
+	}
+}
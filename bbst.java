@@ -1,77 +1,368 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
 
 public class bbst {
 
+	// command words, compared byte by byte against the tokenizer's current token
+	private static final byte[] INCREASE = "increase".getBytes();
+	private static final byte[] REDUCE = "reduce".getBytes();
+	private static final byte[] COUNT = "count".getBytes();
+	private static final byte[] INRANGE = "inrange".getBytes();
+	private static final byte[] NEXT = "next".getBytes();
+	private static final byte[] PREVIOUS = "previous".getBytes();
+	private static final byte[] QUIT = "quit".getBytes();
+
+	// flushes the output after every command instead of in large blocks
+	private static final String INTERACTIVE_FLAG = "-interactive";
+	// selects the storage engine, e.g. -engine=array
+	private static final String ENGINE_FLAG = "-engine=";
+	// restores from this binary snapshot if it exists, and writes it back on exit
+	private static final String SNAPSHOT_FLAG = "-snapshot=";
+	// logs every change to this file before applying it (needs -snapshot), and replays it on start
+	private static final String WAL_FLAG = "-wal=";
+	// group commit: fsync the log after this many changes ...
+	private static final String WAL_SYNC_OPS_FLAG = "-wal-sync-ops=";
+	// ... or after this many microseconds, whichever comes first
+	private static final String WAL_SYNC_MICROS_FLAG = "-wal-sync-micros=";
+	// folds the log into the snapshot once it holds this many changes (0 = only on exit)
+	private static final String WAL_COMPACT_OPS_FLAG = "-wal-compact-ops=";
+	// caches the nodes of this many hot IDs in front of the rbtree engine (0 = off)
+	private static final String HOT_CACHE_FLAG = "-hot-cache=";
+	// collects operation counts and command latencies (see EventMetrics) and prints them to stderr
+	private static final String METRICS_FLAG = "-metrics";
+	// ... every this many seconds while running (0 = only on exit)
+	private static final String METRICS_EVERY_FLAG = "-metrics-every=";
+
+	// the sketch engine's error bounds: count is off by at most epsilon * total with probability 1 - delta ...
+	private static final String SKETCH_EPSILON_FLAG = "-sketch-epsilon=";
+	private static final String SKETCH_DELTA_FLAG = "-sketch-delta=";
+	// ... except for up to this many heavy hitters, which it counts exactly
+	private static final String SKETCH_HEAVY_FLAG = "-sketch-heavy=";
+
+	private static final long DEFAULT_METRICS_EVERY_SECONDS = 10;
+
+	private static final int DEFAULT_WAL_SYNC_OPS = 256;
+	private static final long DEFAULT_WAL_SYNC_MICROS = 2000;
+	private static final long DEFAULT_WAL_COMPACT_OPS = 1 << 20;
+
+	private static final String RBTREE_ENGINE = "rbtree"; // RBTree, one EventNode object per event
+	private static final String ARRAY_ENGINE = "array"; // ArrayRBTree, nodes in parallel primitive arrays
+	private static final String CONCURRENT_ENGINE = "concurrent"; // ConcurrentEventCounter over an RBTree
+	private static final String SNAPSHOT_ENGINE = "snapshot"; // SnapshotEventCounter, persistent tree with wait-free reads
+	private static final String BPTREE_ENGINE = "bptree"; // BPlusTreeCounter, wide nodes with per-child sums
+	private static final String DENSE_ENGINE = "dense"; // DenseEventCounter, a slot per ID of the input's range
+	private static final String SKETCH_ENGINE = "sketch"; // SketchEventCounter, approximate counts in fixed memory
+	private static final String TIERED_ENGINE = "tiered"; // TieredEventCounter, compressed blocks plus an RBTree for changes
+	private static final String AUTO_ENGINE = "auto"; // dense if the input's IDs are dense enough, else rbtree
+	// ShardedEventCounter is not offered: bbst runs one command at a time, so
+	// every command would wait out a round trip to a shard's worker thread
+	// and nothing would run in parallel. It is for callers with many threads.
+
+	// auto picks the dense engine when the ID range is at most this many times the number of events
+	private static final int DENSE_SPAN_FACTOR = 2;
+
 	public static void main(String[] args) {
-		RBTree tree = new RBTree();
 		if (0 < args.length) {
 
 			String inFileName = args[0];
-			File nodesInputFile = new File(inFileName);
+			boolean interactive = false;
+			String engine = AUTO_ENGINE;
+			Path snapshotFile = null;
+			Path walFile = null;
+			int walSyncOps = DEFAULT_WAL_SYNC_OPS;
+			long walSyncMicros = DEFAULT_WAL_SYNC_MICROS;
+			long walCompactOps = DEFAULT_WAL_COMPACT_OPS;
+			int hotCache = 0;
+			boolean metrics = false;
+			long metricsEverySeconds = DEFAULT_METRICS_EVERY_SECONDS;
+			double sketchEpsilon = SketchEventCounter.DEFAULT_EPSILON;
+			double sketchDelta = SketchEventCounter.DEFAULT_DELTA;
+			int sketchHeavy = SketchEventCounter.DEFAULT_HEAVY_CAPACITY;
+			for (int i = 1; i < args.length; i++) {
+				if (INTERACTIVE_FLAG.equals(args[i])) {
+					interactive = true;
+				} else if (args[i].startsWith(ENGINE_FLAG)) {
+					engine = args[i].substring(ENGINE_FLAG.length());
+				} else if (args[i].startsWith(SNAPSHOT_FLAG)) {
+					snapshotFile = Paths.get(args[i].substring(SNAPSHOT_FLAG.length()));
+				} else if (args[i].startsWith(WAL_FLAG)) {
+					walFile = Paths.get(args[i].substring(WAL_FLAG.length()));
+				} else if (args[i].startsWith(WAL_SYNC_OPS_FLAG)) {
+					walSyncOps = Integer.parseInt(args[i].substring(WAL_SYNC_OPS_FLAG.length()));
+				} else if (args[i].startsWith(WAL_SYNC_MICROS_FLAG)) {
+					walSyncMicros = Long.parseLong(args[i].substring(WAL_SYNC_MICROS_FLAG.length()));
+				} else if (args[i].startsWith(WAL_COMPACT_OPS_FLAG)) {
+					walCompactOps = Long.parseLong(args[i].substring(WAL_COMPACT_OPS_FLAG.length()));
+				} else if (METRICS_FLAG.equals(args[i])) {
+					metrics = true;
+				} else if (args[i].startsWith(METRICS_EVERY_FLAG)) {
+					metricsEverySeconds = Long.parseLong(args[i].substring(METRICS_EVERY_FLAG.length()));
+				} else if (args[i].startsWith(SKETCH_EPSILON_FLAG)) {
+					sketchEpsilon = Double.parseDouble(args[i].substring(SKETCH_EPSILON_FLAG.length()));
+				} else if (args[i].startsWith(SKETCH_DELTA_FLAG)) {
+					sketchDelta = Double.parseDouble(args[i].substring(SKETCH_DELTA_FLAG.length()));
+				} else if (args[i].startsWith(SKETCH_HEAVY_FLAG)) {
+					sketchHeavy = Integer.parseInt(args[i].substring(SKETCH_HEAVY_FLAG.length()));
+				} else if (args[i].startsWith(HOT_CACHE_FLAG)) {
+					hotCache = Integer.parseInt(args[i].substring(HOT_CACHE_FLAG.length()));
+				} else {
+					System.out.println("\n Unknown option: '" + args[i] + "'\n");
+					return;
+				}
+			}
+			if (!isKnownEngine(engine)) {
+				System.out.println("\n Unknown engine: '" + engine + "'\n");
+				return;
+			}
+			if (walFile != null && snapshotFile == null) {
+				System.out.println("\n " + WAL_FLAG + " needs " + SNAPSHOT_FLAG + "\n");
+				return;
+			}
+			if (SKETCH_ENGINE.equals(engine) && snapshotFile != null) {
+				System.out.println("\n The sketch engine has no exact events to save in a snapshot\n");
+				return;
+			}
+			if (metrics) {
+				// must happen before anything loads EventMetrics, which reads it once
+				System.setProperty("eventcounter.metrics", "true");
+				EventMetrics.dumpEvery(metricsEverySeconds);
+			}
 			try {
-				FileReader inFile = new FileReader(nodesInputFile);
-				BufferedReader in = new BufferedReader(inFile);
-
-				String s = in.readLine();
-
-				int nCount = Integer.parseInt(s);
-				RBTree.EventNode[] nodesArr = new RBTree.EventNode[nCount];
-				s = in.readLine();
-
-				for (int i = 0; i < nCount; i++) {
-					String nums[] = s.split(" ");
-					int nodeID = Integer.parseInt(nums[0]);
-					int nodeCount = Integer.parseInt(nums[1]);
-					RBTree.EventNode node = tree.new EventNode(nodeID, nodeCount);
-					node.isRed = false;
-					nodesArr[i] = node;
-					s = in.readLine();
+				EventCounter counter;
+				long snapshotSequence = 0;
+				String selectedEngine = engine;
+				int selectedHotCache = hotCache;
+				double epsilon = sketchEpsilon, delta = sketchDelta;
+				int heavy = sketchHeavy;
+				RestoredEventCounter.EngineBuilder builder = SKETCH_ENGINE.equals(engine)
+						? events -> SketchEventCounter.fromSorted(events, epsilon, delta, heavy)
+						: events -> withHotCache(buildCounter(selectedEngine, events), selectedHotCache);
+				if (snapshotFile != null && Files.exists(snapshotFile)) {
+					// instant restart: answer queries from the mapped snapshot and
+					// build the engine in the background once the first change arrives
+					EventSnapshot snapshot = EventSnapshot.open(snapshotFile);
+					snapshotSequence = snapshot.sequence();
+					counter = new RestoredEventCounter(snapshot, builder);
+				} else {
+					counter = loadCounter(builder, inFileName);
+				}
+				LoggedEventCounter logged = null;
+				if (walFile != null) {
+					// the changes made since the snapshot are replayed from the log
+					logged = LoggedEventCounter.recover(counter, snapshotSequence, walFile, snapshotFile, walSyncOps,
+							walSyncMicros, walCompactOps);
+					counter = logged;
 				}
 
-				tree.generateRBT(nodesArr, nCount);
-
-				// We are creating an object of scanner class to read the command line input
-				Scanner scanner = new Scanner(System.in);
-				s = scanner.nextLine();
-				while (!"quit".equals(s)) {
-					String cmds[] = s.split(" ");
-					String cmd = cmds[0];
-
-					switch (cmd) {
-					case "increase":
-						tree.increase(Integer.parseInt(cmds[1]), Integer.parseInt(cmds[2]));
-						break;
-					case "reduce":
-						tree.reduce(Integer.parseInt(cmds[1]), Integer.parseInt(cmds[2]));
-						break;
-					case "count":
-						tree.count(Integer.parseInt(cmds[1]));
-						break;
-					case "inrange":
-						tree.inRange(Integer.parseInt(cmds[1]), Integer.parseInt(cmds[2]));
-						break;
-					case "next":
-						tree.next(Integer.parseInt(cmds[1]), true);
-						break;
-					case "previous":
-						tree.previous(Integer.parseInt(cmds[1]), true);
-						break;
-					default:
-						System.out.println("\nCommand is not valid: '" + cmd + "' ! Type 'quit' to exit. ");
-						break;
+				ResultWriter out = new ResultWriter(System.out, interactive);
+				try {
+					runCommands(counter, new CommandReader(System.in), out);
+				} finally {
+					out.flush();
+					if (EventMetrics.ENABLED) {
+						EventMetrics.sample(counter);
+						EventMetrics.dump(System.err);
+					}
+				}
+				if (logged != null) {
+					if (logged.pendingMutations() > 0 || !Files.exists(snapshotFile)) {
+						logged.checkpoint();
 					}
-					s = scanner.nextLine();
+					logged.close();
+				} else if (snapshotFile != null) {
+					writeSnapshot(counter, snapshotFile);
 				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		} else {
-			System.out.println("\n Enter a file name (with extension) containing the input as sorted nodes. \n");
+			System.out.println("\n Enter a file name (with extension) containing the input nodes. \n");
+		}
+	}
+
+	// reads the text input file and builds an engine from it
+	static EventCounter loadCounter(RestoredEventCounter.EngineBuilder builder, String inFileName) throws IOException {
+		// the input pairs may come in any order and repeat IDs; the bulk
+		// loader sorts them and sums the repeats
+		try (InputStream inFile = new FileInputStream(inFileName); BulkLoader loader = new BulkLoader()) {
+			CommandReader in = new CommandReader(inFile);
+			int nCount = in.nextInt();
+
+			for (int i = 0; i < nCount; i++) {
+				loader.add(in.nextInt(), in.nextLong());
+			}
+
+			try (BulkLoader.SortedEvents events = loader.finish()) {
+				return builder.build(events);
+			}
+		}
+	}
+
+	static void writeSnapshot(EventCounter counter, Path snapshotFile) throws IOException {
+		if (counter instanceof RestoredEventCounter) {
+			RestoredEventCounter restored = (RestoredEventCounter) counter;
+			if (!restored.isModified()) {
+				return; // the snapshot on disk is still current
+			}
+			restored.awaitEngine(); // the engine's events are read faster than the overlay's merged view
+		}
+		EventSnapshot.write(EventSnapshot.eventsOf(counter), snapshotFile, 0);
+	}
+
+	static boolean isKnownEngine(String engine) {
+		switch (engine) {
+		case RBTREE_ENGINE:
+		case CONCURRENT_ENGINE:
+		case ARRAY_ENGINE:
+		case SNAPSHOT_ENGINE:
+		case BPTREE_ENGINE:
+		case DENSE_ENGINE:
+		case SKETCH_ENGINE:
+		case TIERED_ENGINE:
+		case AUTO_ENGINE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// builds the selected storage engine from the sorted input events
+	static EventCounter buildCounter(String engine, BulkLoader.SortedEvents events) throws IOException {
+		if (AUTO_ENGINE.equals(engine)) {
+			engine = isDense(events) ? DENSE_ENGINE : RBTREE_ENGINE;
+		}
+		switch (engine) {
+		case RBTREE_ENGINE:
+		case CONCURRENT_ENGINE:
+			RBTree tree = new RBTree();
+			if (events.ids() == null && events.size() > RBTree.PARALLEL_BUILD_CUTOFF
+					&& ForkJoinPool.getCommonPoolParallelism() > 1) {
+				// the input spilled to run files: reading the merge into arrays
+				// (12 bytes an event, dropped after the build) lets the subtrees
+				// still be built in parallel
+				events = BulkLoader.inMemory(events);
+			}
+			if (events.ids() != null) {
+				// everything is in memory: build the subtrees in parallel
+				tree.generateRBT(events.ids(), events.counts(), events.size());
+			} else {
+				// one core: stream the events straight into nodes, without the arrays
+				tree.generateRBT(events);
+			}
+			return CONCURRENT_ENGINE.equals(engine) ? new ConcurrentEventCounter(tree) : tree;
+		case ARRAY_ENGINE:
+		case SNAPSHOT_ENGINE:
+			BulkLoader.ArrayEvents array = BulkLoader.inMemory(events);
+			if (ARRAY_ENGINE.equals(engine)) {
+				return ArrayRBTree.fromSorted(array.ids(), array.counts(), array.size());
+			}
+			return SnapshotEventCounter.fromSorted(array.ids(), array.counts(), array.size());
+		case BPTREE_ENGINE:
+			return BPlusTreeCounter.fromSorted(events);
+		case DENSE_ENGINE:
+			if (events.minId() == EventCounter.NO_ID) {
+				// the range is not known up front: read the events into memory first
+				events = BulkLoader.inMemory(events);
+			}
+			if (events.size() == 0) {
+				return new DenseEventCounter(0, 0);
+			}
+			return DenseEventCounter.fromSorted(events, (int) events.minId(), (int) events.maxId());
+		case TIERED_ENGINE:
+			return TieredEventCounter.fromSorted(events);
+		case SKETCH_ENGINE:
+			return SketchEventCounter.fromSorted(events, SketchEventCounter.DEFAULT_EPSILON,
+					SketchEventCounter.DEFAULT_DELTA, SketchEventCounter.DEFAULT_HEAVY_CAPACITY);
+		default:
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+	}
+
+	// turns on the hot node cache of an RBTree engine; other engines are returned as they are
+	static EventCounter withHotCache(EventCounter counter, int entries) {
+		if (entries > 0 && counter instanceof RBTree) {
+			((RBTree) counter).enableHotNodeCache(entries);
+		}
+		return counter;
+	}
+
+	// true if the events fill enough of their ID range to be kept in a slot per ID
+	static boolean isDense(BulkLoader.SortedEvents events) {
+		if (events.size() == 0 || events.minId() == EventCounter.NO_ID) {
+			return false;
+		}
+		long span = events.maxId() - events.minId() + 1;
+		return span <= DenseEventCounter.MAX_SPAN && span <= (long) DENSE_SPAN_FACTOR * events.size();
+	}
+
+	// reads and executes commands until 'quit' or the end of the input, printing every result
+	static void runCommands(EventCounter counter, CommandReader in, ResultWriter out) throws IOException {
+		long commands = 0;
+		while (in.nextToken() && !in.tokenEquals(QUIT)) {
+			// only every TIME_EVERY-th command is timed: two clock reads per command cost more than the budget
+			boolean timed = EventMetrics.ENABLED && (++commands & (EventMetrics.TIME_EVERY - 1)) == 0;
+			long start = timed ? System.nanoTime() : 0;
+			int command = -1;
+			try {
+				command = runCommand(counter, in, out);
+			} catch (ArithmeticException e) {
+				// the counters reject the change as a whole, so the tree is still consistent
+				out.println("\nCount overflow: the command was ignored. ");
+			}
+			out.endCommand();
+			if (timed) {
+				long end = System.nanoTime();
+				if (command >= 0) {
+					EventMetrics.command(command, end - start);
+				}
+				EventMetrics.tick(counter, end);
+			}
+		}
+	}
+
+	// runs one command and returns which one it was (an EventMetrics index), or -1 if it was not valid
+	private static int runCommand(EventCounter counter, CommandReader in, ResultWriter out) throws IOException {
+		if (in.tokenEquals(INCREASE) || in.tokenEquals(REDUCE)) {
+			boolean increase = in.tokenEquals(INCREASE);
+			int id = in.nextInt();
+			long delta = in.nextLong();
+			if (delta <= 0) {
+				out.println("\nThe count must be positive: the command was ignored. ");
+				return -1;
+			}
+			out.println(increase ? counter.increase(id, delta) : counter.reduce(id, delta));
+			return increase ? EventMetrics.INCREASE : EventMetrics.REDUCE;
+		} else if (in.tokenEquals(COUNT)) {
+			out.println(counter.count(in.nextInt()));
+			return EventMetrics.COUNT;
+		} else if (in.tokenEquals(INRANGE)) {
+			out.println(counter.rangeSum(in.nextInt(), in.nextInt()));
+			return EventMetrics.INRANGE;
+		} else if (in.tokenEquals(NEXT)) {
+			printEvent(counter, counter.nextId(in.nextInt()), out);
+			return EventMetrics.NEXT;
+		} else if (in.tokenEquals(PREVIOUS)) {
+			printEvent(counter, counter.previousId(in.nextInt()), out);
+			return EventMetrics.PREVIOUS;
+		} else {
+			out.println("\nCommand is not valid: '" + in.tokenString() + "' ! Type 'quit' to exit. ");
+			in.skipLine();
+			return -1;
+		}
+	}
+
+	// prints "id count", or "0 0" if there is no such event
+	private static void printEvent(EventCounter counter, long id, ResultWriter out) {
+		if (id == EventCounter.NO_ID) {
+			out.println(0, 0);
+		} else {
+			out.println(id, counter.count((int) id));
 		}
 	}
 